@@ -0,0 +1,149 @@
+package app.seamlessupdate.client;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Small harness for the host benchmarks. An operation runs for a few warm-up iterations and then
+// for the measured ones, which are reported as throughput, latency percentiles, bytes allocated
+// per operation by all threads and garbage collections. Allocation is sampled per thread while
+// the operation runs, since the download starts and stops its own worker threads.
+final class Benchmark {
+    private static final long SAMPLE_INTERVAL_MILLIS = 2;
+
+    interface Operation {
+        // returns the bytes processed, or 0 to leave the throughput out of the report
+        long run() throws Exception;
+    }
+
+    static final class Result {
+        final String name;
+        final double bytesPerSecond;
+        final double opsPerSecond;
+        final long[] latencyNanos;
+        final long allocatedPerOp;
+        final long gcCount;
+        final long gcMillis;
+
+        Result(final String name, final double bytesPerSecond, final double opsPerSecond,
+                final long[] latencyNanos, final long allocatedPerOp, final long gcCount, final long gcMillis) {
+            this.name = name;
+            this.bytesPerSecond = bytesPerSecond;
+            this.opsPerSecond = opsPerSecond;
+            this.latencyNanos = latencyNanos;
+            this.allocatedPerOp = allocatedPerOp;
+            this.gcCount = gcCount;
+            this.gcMillis = gcMillis;
+        }
+
+        private double percentileMillis(final double percentile) {
+            final int index = (int) Math.min(latencyNanos.length - 1, Math.floor(percentile * latencyNanos.length));
+            return latencyNanos[index] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder report = new StringBuilder(name).append(':');
+            if (bytesPerSecond > 0) {
+                report.append(String.format(" %.1f MB/s", bytesPerSecond / 1e6));
+            }
+            report.append(String.format(" %.1f ops/s", opsPerSecond));
+            report.append(String.format(" latency p50=%.3fms p90=%.3fms max=%.3fms",
+                    percentileMillis(0.5), percentileMillis(0.9), percentileMillis(1)));
+            report.append(" allocated=").append(allocatedPerOp).append("B/op");
+            report.append(" gc=").append(gcCount).append(" (").append(gcMillis).append("ms)");
+            return report.toString();
+        }
+    }
+
+    private Benchmark() {}
+
+    private static long[] gcTotals() {
+        long count = 0;
+        long millis = 0;
+        for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return new long[] { count, millis };
+    }
+
+    // Tracks the most each thread was seen to have allocated, which keeps the count of a thread
+    // that exits during the measurement up to its last sample.
+    private static final class AllocationSampler extends Thread {
+        private final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        private final Map<Long, Long> baseline = new HashMap<>();
+        private final Map<Long, Long> latest = new HashMap<>();
+        private volatile boolean done;
+
+        AllocationSampler() {
+            super("AllocationSampler");
+            setDaemon(true);
+            sample(baseline);
+        }
+
+        private synchronized void sample(final Map<Long, Long> into) {
+            final long[] ids = threads.getAllThreadIds();
+            final long[] allocated = threads.getThreadAllocatedBytes(ids);
+            for (int i = 0; i < ids.length; i++) {
+                if (allocated[i] >= 0 && ids[i] != getId()) {
+                    into.merge(ids[i], allocated[i], Math::max);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!done) {
+                sample(latest);
+                try {
+                    Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        synchronized long finish() throws InterruptedException {
+            done = true;
+            sample(latest);
+            long total = 0;
+            for (final Map.Entry<Long, Long> entry : latest.entrySet()) {
+                total += entry.getValue() - baseline.getOrDefault(entry.getKey(), 0L);
+            }
+            return total;
+        }
+    }
+
+    static Result measure(final String name, final int warmup, final int iterations,
+            final Operation operation) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            operation.run();
+        }
+        System.gc();
+        final long[] latencies = new long[iterations];
+        long bytes = 0;
+        final long[] gcBefore = gcTotals();
+        final AllocationSampler sampler = new AllocationSampler();
+        sampler.start();
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            final long operationStart = System.nanoTime();
+            bytes += operation.run();
+            latencies[i] = System.nanoTime() - operationStart;
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long allocated = sampler.finish();
+        final long[] gcAfter = gcTotals();
+        Arrays.sort(latencies);
+        final double seconds = elapsed / (double) TimeUnit.SECONDS.toNanos(1);
+        final Result result = new Result(name, bytes / seconds, iterations / seconds, latencies,
+                allocated / iterations, gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1]);
+        System.out.println(result);
+        return result;
+    }
+}
@@ -0,0 +1,34 @@
+package app.seamlessupdate.client;
+
+import java.util.Arrays;
+import java.util.List;
+
+// Runs the host benchmarks, or only those named on the command line.
+public final class Benchmarks {
+    private Benchmarks() {}
+
+    public static void main(final String[] args) throws Exception {
+        // the download logs every reconnect, which isn't what's being measured
+        Log.setSink((priority, tag, msg, tr) -> {
+            if (priority >= Log.WARN) {
+                System.err.println(tag + ": " + msg);
+            }
+        });
+        final List<String> selected = Arrays.asList(args);
+        if (selected.isEmpty() || selected.contains("download")) {
+            DownloadBenchmark.run();
+        }
+        if (selected.isEmpty() || selected.contains("transfer")) {
+            TransferBenchmark.run();
+        }
+        if (selected.isEmpty() || selected.contains("metadata")) {
+            MetadataBenchmark.run();
+        }
+        if (selected.isEmpty() || selected.contains("zip")) {
+            ZipBenchmark.run();
+        }
+        if (selected.isEmpty() || selected.contains("progress")) {
+            ProgressThrottleBenchmark.run();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package app.seamlessupdate.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+
+// SegmentedDownload of a package from the local server, unrestricted and under a bandwidth cap,
+// latency, a connection reset partway through and a refused range that fails the first attempt.
+final class DownloadBenchmark {
+    private static final String PATH = "package.zip";
+    private static final int LENGTH = 3 * DownloadJournal.CHUNK_SIZE;
+
+    private DownloadBenchmark() {}
+
+    static SegmentedDownload.ConnectionFactory connect(final TestServer server, final String path) {
+        return () -> (HttpURLConnection) new URL(server.getUrl() + path).openConnection();
+    }
+
+    // downloads the whole package into a fresh file, running it again after a failed attempt
+    private static long download(final TestServer server, final File directory) throws IOException {
+        final File file = new File(directory, PATH);
+        final File journalFile = new File(directory, PATH + ".journal");
+        Files.deleteIfExists(file.toPath());
+        try (final DownloadJournal journal = DownloadJournal.create(journalFile, LENGTH)) {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    new SegmentedDownload(connect(server, PATH), file, journal).run(
+                            (contiguous, downloaded, contentLength) -> {});
+                    break;
+                } catch (IOException e) {
+                    if (attempt == 2) {
+                        throw e;
+                    }
+                }
+            }
+        }
+        return LENGTH;
+    }
+
+    static void run() throws Exception {
+        final File directory = Files.createTempDirectory("download").toFile();
+        try (final TestServer server = new TestServer()) {
+            server.put(PATH, TestPackages.random(LENGTH, 1));
+
+            Benchmark.measure("download", 2, 10, () -> download(server, directory));
+
+            server.setBytesPerSecond(50L * 1000 * 1000);
+            Benchmark.measure("download capped at 50 MB/s per connection", 1, 3, () -> download(server, directory));
+            server.setBytesPerSecond(0);
+
+            server.setLatencyMillis(100);
+            Benchmark.measure("download with 100 ms latency", 1, 5, () -> download(server, directory));
+            server.setLatencyMillis(0);
+
+            Benchmark.measure("download with a connection reset", 1, 5, () -> {
+                server.dropNextResponseAfter(DownloadJournal.CHUNK_SIZE / 4);
+                return download(server, directory);
+            });
+
+            Benchmark.measure("download after a refused range", 1, 5, () -> {
+                server.refuseRanges(1);
+                return download(server, directory);
+            });
+        } finally {
+            for (final File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+}
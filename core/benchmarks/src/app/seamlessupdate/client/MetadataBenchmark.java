@@ -0,0 +1,22 @@
+package app.seamlessupdate.client;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+
+// Parsing the metadata of a package, including the lookup of the payload in its property files.
+final class MetadataBenchmark {
+    private MetadataBenchmark() {}
+
+    static void run() throws Exception {
+        final String metadata = TestPackages.metadata(1700000000, "payload.bin:1371:2146232461,"
+                + "payload_properties.txt:2146233890:154,care_map.pb:2146234100:1023,"
+                + "metadata:69:1255,metadata.pb:1380:1256");
+        final long[] sink = new long[1];
+        Benchmark.measure("metadata parse", 20000, 200000, () -> {
+            final PackageMetadata parsed = PackageMetadata.parse(
+                    new BufferedReader(new StringReader(metadata)));
+            sink[0] += parsed.getPropertyFile("payload.bin")[0];
+            return 0;
+        });
+    }
+}
@@ -0,0 +1,57 @@
+package app.seamlessupdate.client;
+
+// Progress updates at the rate the download reports them, through the throttle in front of the
+// notification. The clock advances a millisecond per update and scheduled posts run once due.
+final class ProgressThrottleBenchmark {
+    private static final int UPDATES = 100000;
+
+    private ProgressThrottleBenchmark() {}
+
+    private static final class ManualScheduler implements ProgressThrottle.Scheduler {
+        long now;
+        Runnable task;
+        long due;
+
+        @Override
+        public long now() {
+            return now;
+        }
+
+        @Override
+        public void schedule(final Runnable task, final long delayMillis) {
+            this.task = task;
+            due = now + delayMillis;
+        }
+
+        @Override
+        public void cancel(final Runnable task) {
+            this.task = null;
+        }
+
+        void advance() {
+            now++;
+            if (task != null && now >= due) {
+                final Runnable run = task;
+                task = null;
+                run.run();
+            }
+        }
+    }
+
+    static void run() throws Exception {
+        final ManualScheduler scheduler = new ManualScheduler();
+        final int[] posted = new int[1];
+        final ProgressThrottle throttle = new ProgressThrottle(scheduler,
+                (title, progress, paused) -> posted[0]++, 1000);
+        Benchmark.measure("progress throttle, " + UPDATES + " updates", 10, 100, () -> {
+            throttle.reset();
+            for (int i = 0; i < UPDATES; i++) {
+                throttle.update(1, i * 100 / UPDATES);
+                scheduler.advance();
+            }
+            return 0;
+        });
+        System.out.println("progress throttle posted " + throttle.getPosted() + " of "
+                + (throttle.getPosted() + throttle.getSuppressed()) + " updates");
+    }
+}
@@ -0,0 +1,87 @@
+package app.seamlessupdate.client;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+
+// The download loop the service used before SegmentedDownload, reading the whole package through
+// one connection into an 8 KiB array written with FileOutputStream, against SegmentedDownload,
+// both over loopback. A package of one chunk is fetched by SegmentedDownload through one
+// connection as well, which isolates its buffer path, while a package of several chunks without a
+// cap and at a cap per connection measures what its concurrent connections add.
+final class TransferBenchmark {
+    private static final String SINGLE_PATH = "single.zip";
+    private static final int SINGLE_LENGTH = DownloadJournal.CHUNK_SIZE;
+    private static final String MULTI_PATH = "multi.zip";
+    private static final int MULTI_LENGTH = 4 * DownloadJournal.CHUNK_SIZE;
+
+    private TransferBenchmark() {}
+
+    private static long copyLoop(final TestServer server, final String path, final int length,
+            final File file) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(server.getUrl() + path).openConnection();
+        long downloaded = 0;
+        try (final InputStream input = connection.getInputStream();
+                final OutputStream output = new FileOutputStream(file)) {
+            int bytesRead;
+            long last = System.nanoTime();
+            final byte[] buffer = new byte[8192];
+            while ((bytesRead = input.read(buffer)) != -1) {
+                output.write(buffer, 0, bytesRead);
+                downloaded += bytesRead;
+                final long now = System.nanoTime();
+                if (now - last > 1000 * 1000 * 1000) {
+                    last = now;
+                }
+            }
+        } finally {
+            connection.disconnect();
+        }
+        if (downloaded != length) {
+            throw new IOException("downloaded " + downloaded + " of " + length + " bytes");
+        }
+        return downloaded;
+    }
+
+    private static long segmented(final TestServer server, final String path, final int length,
+            final File file) throws IOException {
+        Files.deleteIfExists(file.toPath());
+        try (final DownloadJournal journal = DownloadJournal.create(new File(file + ".journal"), length)) {
+            new SegmentedDownload(DownloadBenchmark.connect(server, path), file, journal).run(
+                    (contiguous, downloaded, contentLength) -> {});
+        }
+        return length;
+    }
+
+    static void run() throws Exception {
+        final File file = File.createTempFile("package", ".zip");
+        try (final TestServer server = new TestServer()) {
+            server.put(SINGLE_PATH, TestPackages.random(SINGLE_LENGTH, 3));
+            server.put(MULTI_PATH, TestPackages.random(MULTI_LENGTH, 4));
+
+            Benchmark.measure("transfer through one connection with 8 KiB loop", 2, 20,
+                    () -> copyLoop(server, SINGLE_PATH, SINGLE_LENGTH, file));
+            Benchmark.measure("transfer through one connection with SegmentedDownload", 2, 20,
+                    () -> segmented(server, SINGLE_PATH, SINGLE_LENGTH, file));
+
+            Benchmark.measure("transfer with 8 KiB loop", 2, 10,
+                    () -> copyLoop(server, MULTI_PATH, MULTI_LENGTH, file));
+            Benchmark.measure("transfer with SegmentedDownload", 2, 10,
+                    () -> segmented(server, MULTI_PATH, MULTI_LENGTH, file));
+
+            server.setBytesPerSecond(40L * 1000 * 1000);
+            Benchmark.measure("transfer with 8 KiB loop at 40 MB/s per connection", 1, 3,
+                    () -> copyLoop(server, MULTI_PATH, MULTI_LENGTH, file));
+            Benchmark.measure("transfer with SegmentedDownload at 40 MB/s per connection", 1, 3,
+                    () -> segmented(server, MULTI_PATH, MULTI_LENGTH, file));
+        } finally {
+            file.delete();
+            new File(file + ".journal").delete();
+        }
+    }
+}
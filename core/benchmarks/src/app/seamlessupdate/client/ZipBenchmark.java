@@ -0,0 +1,45 @@
+package app.seamlessupdate.client;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+// Extracting the small entries of a package, from a downloaded file with ZipFile as for a stored
+// package and from the server with RemoteZip as for streaming and overlapped installs.
+final class ZipBenchmark {
+    private static final String PATH = "package.zip";
+
+    private ZipBenchmark() {}
+
+    static void run() throws Exception {
+        final byte[] content = TestPackages.createPackage(1700000000, TestPackages.random(32 * 1024 * 1024, 2));
+        final File file = File.createTempFile("package", ".zip");
+        try (final TestServer server = new TestServer()) {
+            Files.write(file.toPath(), content);
+            Benchmark.measure("zip entries from file", 200, 2000, () -> {
+                try (final ZipFile zipFile = new ZipFile(file)) {
+                    final ZipEntry metadataEntry = zipFile.getEntry(PackageMetadata.ENTRY_NAME);
+                    PackageMetadata.parse(new BufferedReader(new InputStreamReader(
+                            zipFile.getInputStream(metadataEntry)))).getPropertyFile("payload.bin");
+                    return zipFile.getInputStream(zipFile.getEntry("care_map.pb")).readAllBytes().length
+                            + zipFile.getInputStream(zipFile.getEntry("payload_properties.txt")).readAllBytes().length;
+                }
+            });
+
+            server.put(PATH, content);
+            Benchmark.measure("zip entries from server", 50, 500, () -> {
+                final RemoteZip zip = new RemoteZip(DownloadBenchmark.connect(server, PATH));
+                PackageMetadata.parse(new BufferedReader(new InputStreamReader(new ByteArrayInputStream(
+                        zip.read(zip.getEntry(PackageMetadata.ENTRY_NAME)))))).getPropertyFile("payload.bin");
+                return zip.read(zip.getEntry("care_map.pb")).length
+                        + zip.read(zip.getEntry("payload_properties.txt")).length;
+            });
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package app.seamlessupdate.client;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+// Fills in a new package from the blocks it shares with a stale one, such as a partial download
+// of a build that has since been replaced, in the manner of zsync. The server publishes a block
+// map next to each package:
+//
+//     <block size> <content length>
+//     <rolling checksum> <SHA-256>    (hex, one line per block)
+//
+// The rolling checksum is rsync's, with the sum of the bytes of the block in the low 16 bits and
+// the sum of each byte weighted by its distance from the end of the block in the high 16 bits.
+//
+// A rolling checksum over the stale file finds blocks at any offset, which are confirmed by their
+// SHA-256 and copied to where they belong in the new package. Chunks of the journal that are
+// mostly covered are completed by fetching the missing ranges, while the rest is left to the
+// segmented download. A wrong block map can only produce a package that fails verification.
+class BlockReuse {
+    private static final String TAG = "BlockReuse";
+    static final String BLOCK_MAP_SUFFIX = ".blockmap";
+    private static final int MIN_BLOCK_SIZE = 4096;
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+    // chunks with less reusable than this are fetched whole by the segmented download instead
+    private static final double MIN_REUSED_FRACTION = 0.5;
+
+    private final SegmentedDownload.ConnectionFactory blockMapFactory;
+    private final SegmentedDownload.ConnectionFactory packageFactory;
+    private final File stale;
+    private final File file;
+    private final DownloadJournal journal;
+    private final UpdateOrchestrator.Control control;
+    private int blockSize;
+    private int blockCount;
+    // weak checksums of the full blocks in ascending order, the block of each at the same index
+    // and each block's strong hash
+    private int[] checksums;
+    private int[] checksumBlocks;
+    private byte[][] hashes;
+    private BitSet matched;
+    private long reusedBytes;
+    private long fetchedBytes;
+
+    // The block map is requested from one factory and the missing ranges of the package from the
+    // other.
+    BlockReuse(final SegmentedDownload.ConnectionFactory blockMapFactory,
+            final SegmentedDownload.ConnectionFactory packageFactory, final File stale, final File file,
+            final DownloadJournal journal, final UpdateOrchestrator.Control control) {
+        this.blockMapFactory = blockMapFactory;
+        this.packageFactory = packageFactory;
+        this.stale = stale;
+        this.file = file;
+        this.journal = journal;
+        this.control = control;
+    }
+
+    long getReusedBytes() {
+        return reusedBytes;
+    }
+
+    long getFetchedBytes() {
+        return fetchedBytes;
+    }
+
+    private static byte[] parseHex(final String hex) throws IOException {
+        if (hex.length() % 2 != 0) {
+            throw new IOException("invalid block map hash: " + hex);
+        }
+        final byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            final int high = Character.digit(hex.charAt(2 * i), 16);
+            final int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high == -1 || low == -1) {
+                throw new IOException("invalid block map hash: " + hex);
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+
+    // Returns false if the server has no block map for the package.
+    private boolean readBlockMap() throws IOException {
+        final HttpURLConnection connection = blockMapFactory.open();
+        try {
+            final int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
+                return false;
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new IOException("unexpected response code " + responseCode + " for " + connection.getURL());
+            }
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    connection.getInputStream(), StandardCharsets.UTF_8));
+            final String headerLine = reader.readLine();
+            if (headerLine == null) {
+                throw new IOException("empty block map");
+            }
+            final String[] header = headerLine.split(" ");
+            try {
+                blockSize = Integer.parseInt(header[0]);
+                if (Long.parseLong(header[1]) != journal.getContentLength()) {
+                    throw new IOException("block map is for another package");
+                }
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                throw new IOException("invalid block map header", e);
+            }
+            // blocks never straddle chunks, so a chunk is covered by whole blocks
+            if (blockSize < MIN_BLOCK_SIZE || DownloadJournal.CHUNK_SIZE % blockSize != 0) {
+                throw new IOException("unsupported block size " + blockSize);
+            }
+            final long count = (journal.getContentLength() + blockSize - 1) / blockSize;
+            blockCount = (int) count;
+            hashes = new byte[blockCount][];
+            matched = new BitSet(blockCount);
+            // checksum in the high half and block in the low half, to sort them together
+            final long[] entries = new long[blockCount];
+            int entryCount = 0;
+            for (int block = 0; block < blockCount; block++) {
+                final String line = reader.readLine();
+                if (line == null) {
+                    throw new IOException("block map truncated at block " + block);
+                }
+                final String[] fields = line.split(" ");
+                if (fields.length != 2) {
+                    throw new IOException("invalid block map line: " + line);
+                }
+                hashes[block] = parseHex(fields[1]);
+                // a short last block is left to the download
+                if (blockLength(block) == blockSize) {
+                    entries[entryCount++] = (long) (int) Long.parseLong(fields[0], 16) << 32 | block;
+                }
+            }
+            Arrays.sort(entries, 0, entryCount);
+            checksums = new int[entryCount];
+            checksumBlocks = new int[entryCount];
+            for (int i = 0; i < entryCount; i++) {
+                checksums[i] = (int) (entries[i] >> 32);
+                checksumBlocks[i] = (int) entries[i];
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid block map", e);
+        } finally {
+            Connections.release(connection);
+        }
+        return true;
+    }
+
+    // Returns the index of the first block with the checksum, or -1 if there's none.
+    private int findChecksum(final int checksum) {
+        int index = Arrays.binarySearch(checksums, checksum);
+        if (index < 0) {
+            return -1;
+        }
+        while (index > 0 && checksums[index - 1] == checksum) {
+            index--;
+        }
+        return index;
+    }
+
+    private int blockLength(final int block) {
+        return (int) Math.min(blockSize, journal.getContentLength() - (long) block * blockSize);
+    }
+
+    // Copies the blocks of the new package found in the stale file to their place in the new
+    // one, skipping ahead by a block after each match like rsync.
+    private void scan(final FileChannel target) throws IOException, GeneralSecurityException {
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        final byte[] window = new byte[blockSize];
+        final byte[] input = new byte[READ_BUFFER_SIZE];
+        try (final FileChannel source = FileChannel.open(stale.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer inputBuffer = ByteBuffer.wrap(input);
+            inputBuffer.limit(0);
+            // the window is a ring starting at head once filled
+            int filled = 0;
+            int head = 0;
+            int a = 0;
+            int b = 0;
+            while (true) {
+                if (!inputBuffer.hasRemaining()) {
+                    control.checkCancelled();
+                    inputBuffer.clear();
+                    if (source.read(inputBuffer) == -1) {
+                        break;
+                    }
+                    inputBuffer.flip();
+                }
+                final byte next = inputBuffer.get();
+                final int in = next & 0xff;
+                if (filled < blockSize) {
+                    window[filled++] = next;
+                    a += in;
+                    b += a;
+                } else {
+                    final int out = window[head] & 0xff;
+                    window[head] = next;
+                    head = head + 1 == blockSize ? 0 : head + 1;
+                    a += in - out;
+                    b += a - blockSize * out;
+                }
+                if (filled < blockSize) {
+                    continue;
+                }
+                final int checksum = (a & 0xffff) | (b << 16);
+                final int first = findChecksum(checksum);
+                if (first == -1) {
+                    continue;
+                }
+                digest.update(window, head, blockSize - head);
+                digest.update(window, 0, head);
+                final byte[] hash = digest.digest();
+                boolean found = false;
+                for (int i = first; i < checksums.length && checksums[i] == checksum; i++) {
+                    final int block = checksumBlocks[i];
+                    if (Arrays.equals(hash, hashes[block])) {
+                        found = true;
+                        if (!matched.get(block)) {
+                            write(target, window, head, (long) block * blockSize);
+                            matched.set(block);
+                            reusedBytes += blockSize;
+                        }
+                    }
+                }
+                if (found) {
+                    filled = 0;
+                    head = 0;
+                    a = 0;
+                    b = 0;
+                }
+            }
+        }
+    }
+
+    private static void write(final FileChannel target, final byte[] window, final int head,
+            final long position) throws IOException {
+        final ByteBuffer first = ByteBuffer.wrap(window, head, window.length - head);
+        long offset = position;
+        while (first.hasRemaining()) {
+            offset += target.write(first, offset);
+        }
+        final ByteBuffer second = ByteBuffer.wrap(window, 0, head);
+        while (second.hasRemaining()) {
+            offset += target.write(second, offset);
+        }
+    }
+
+    // Fetches the blocks from first until before end into the file.
+    private void fetch(final FileChannel target, final int first, final int end) throws IOException {
+        final long start = (long) first * blockSize;
+        final long length = (long) (end - first - 1) * blockSize + blockLength(end - 1);
+        final HttpURLConnection connection = packageFactory.open();
+        boolean complete = false;
+        try {
+            connection.setRequestProperty("Range", "bytes=" + start + "-" + (start + length - 1));
+            final int responseCode = connection.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("unexpected response code " + responseCode + " for range request");
+            }
+            try (final ReadableByteChannel source = Channels.newChannel(connection.getInputStream())) {
+                final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                long written = 0;
+                while (written < length) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), length - written));
+                    if (source.read(buffer) == -1) {
+                        throw new IOException("range at " + start + " truncated after " + written + " bytes");
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        written += target.write(buffer, start + written);
+                    }
+                }
+                fetchedBytes += length;
+                complete = true;
+            }
+        } finally {
+            if (complete) {
+                Connections.release(connection);
+            } else {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private int checksumChunk(final FileChannel target, final int chunk) throws IOException {
+        final CRC32 crc = new CRC32();
+        final ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        final long start = journal.chunkStart(chunk);
+        final long end = start + journal.chunkLength(chunk);
+        long position = start;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            final int bytesRead = target.read(buffer, position);
+            if (bytesRead == -1) {
+                throw new IOException("package truncated at " + position);
+            }
+            buffer.flip();
+            crc.update(buffer);
+            position += bytesRead;
+        }
+        return (int) crc.getValue();
+    }
+
+    // Returns false if the server has no block map for the package. Chunks completed before a
+    // failure are kept in the journal.
+    boolean run() throws IOException, GeneralSecurityException {
+        if (!readBlockMap()) {
+            Log.d(TAG, "no block map for the package");
+            return false;
+        }
+        try (final FileChannel target = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+            try {
+                scan(target);
+                Log.d(TAG, "found " + matched.cardinality() + " of " + blockCount + " blocks in " + stale);
+
+                final int blocksPerChunk = DownloadJournal.CHUNK_SIZE / blockSize;
+                for (int chunk = 0; chunk < journal.getChunkCount(); chunk++) {
+                    if (journal.isCompleted(chunk)) {
+                        continue;
+                    }
+                    final int first = chunk * blocksPerChunk;
+                    final int end = Math.min(blockCount, first + blocksPerChunk);
+                    final int reused = matched.get(first, end).cardinality();
+                    if (reused < (end - first) * MIN_REUSED_FRACTION) {
+                        continue;
+                    }
+                    for (int block = matched.nextClearBit(first); block < end; ) {
+                        control.checkCancelled();
+                        final int runEnd = Math.min(end, matched.nextSetBit(block) == -1 ?
+                                end : matched.nextSetBit(block));
+                        fetch(target, block, runEnd);
+                        block = matched.nextClearBit(runEnd);
+                    }
+                    journal.complete(chunk, checksumChunk(target, chunk), target);
+                }
+            } finally {
+                journal.sync(target);
+            }
+        }
+        Log.d(TAG, "reused " + reusedBytes + " bytes, fetched " + fetchedBytes + " bytes");
+        return true;
+    }
+}
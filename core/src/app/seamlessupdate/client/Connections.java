@@ -0,0 +1,49 @@
+package app.seamlessupdate.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+
+// HttpURLConnection only returns a connection to the keep-alive pool once its response has been
+// read to the end and closed, while disconnect() closes the socket. Finished requests are released
+// here so the next request to the server skips the TCP and TLS handshakes.
+final class Connections {
+    // more than this left unread is cheaper to drop than to drain
+    private static final int MAX_DRAIN = 64 * 1024;
+
+    private Connections() {}
+
+    // Reads what's left of the response, which is nothing if the caller read it to the end, and
+    // closes it. A stream the caller closed already has been released or dropped by that.
+    static void release(final HttpURLConnection connection) {
+        final InputStream input;
+        try {
+            input = connection.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST ?
+                    connection.getErrorStream() : connection.getInputStream();
+        } catch (IOException e) {
+            connection.disconnect();
+            return;
+        }
+        if (input == null) {
+            return;
+        }
+        try {
+            final byte[] buffer = new byte[8192];
+            int drained = 0;
+            int bytesRead;
+            while ((bytesRead = input.read(buffer)) != -1) {
+                drained += bytesRead;
+                if (drained > MAX_DRAIN) {
+                    connection.disconnect();
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // closed already or failed, which doesn't leave the connection in the pool either way
+        } finally {
+            try {
+                input.close();
+            } catch (IOException e) {}
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package app.seamlessupdate.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+// TLS socket factory shared by the requests of an attempt, so their connections are pooled
+// together and sessions from earlier handshakes are resumed. It counts requests, new connections
+// and resumed sessions for the metrics.
+class CountingSocketFactory extends SSLSocketFactory {
+    private static final String TAG = "CountingSocketFactory";
+
+    private final SSLSocketFactory delegate;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger resumedSessions = new AtomicInteger();
+    // connections are made on the thread that opened the request, which attributes them
+    private final ThreadLocal<String> currentUrl = new ThreadLocal<>();
+
+    CountingSocketFactory(final SSLSocketFactory delegate) {
+        this.delegate = delegate;
+    }
+
+    // called on the thread opening a request, before it connects
+    void onRequest(final String url) {
+        requests.incrementAndGet();
+        currentUrl.set(url);
+    }
+
+    int getRequests() {
+        return requests.get();
+    }
+
+    int getConnections() {
+        return connections.get();
+    }
+
+    int getResumedSessions() {
+        return resumedSessions.get();
+    }
+
+    private Socket track(final Socket socket) {
+        final String url = currentUrl.get();
+        Log.d(TAG, "new connection " + connections.incrementAndGet() + " after " + requests.get() +
+                " requests for " + url);
+        if (socket instanceof SSLSocket) {
+            final long created = System.currentTimeMillis();
+            ((SSLSocket) socket).addHandshakeCompletedListener(event -> {
+                // a resumed session keeps the creation time of its original handshake
+                if (event.getSession().getCreationTime() < created) {
+                    resumedSessions.incrementAndGet();
+                    Log.d(TAG, "resumed TLS session for " + url);
+                }
+            });
+        }
+        return socket;
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return delegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket(final Socket socket, final String host, final int port,
+            final boolean autoClose) throws IOException {
+        return track(delegate.createSocket(socket, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        return track(delegate.createSocket());
+    }
+
+    @Override
+    public Socket createSocket(final String host, final int port) throws IOException {
+        return track(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(final String host, final int port, final InetAddress localHost,
+            final int localPort) throws IOException {
+        return track(delegate.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(final InetAddress host, final int port) throws IOException {
+        return track(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(final InetAddress address, final int port, final InetAddress localAddress,
+            final int localPort) throws IOException {
+        return track(delegate.createSocket(address, port, localAddress, localPort));
+    }
+}
@@ -0,0 +1,194 @@
+package app.seamlessupdate.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// Append-only record of the fixed size chunks of the package that are durably on disk, each with
+// a checksum of its contents. Chunks can complete in any order. Records are only appended after
+// the package data has been synced, so a record never refers to data lost in a crash and a torn
+// record at the end is detected by its own checksum.
+class DownloadJournal implements AutoCloseable {
+    private static final String TAG = "DownloadJournal";
+    static final int CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final int MAGIC = 0x55504a31; // "UPJ1"
+    private static final int HEADER_SIZE = 20;
+    private static final int RECORD_SIZE = 12;
+    // bytes of completed chunks synced together to amortize the cost of flushing
+    static final long DEFAULT_SYNC_BYTES = 8L * CHUNK_SIZE;
+
+    private final FileChannel journal;
+    private final long contentLength;
+    private final int chunkSize;
+    private final int chunkCount;
+    private final BitSet completed = new BitSet();
+    private final List<int[]> pending = new ArrayList<>();
+    private long pendingBytes;
+    private long syncBytes = DEFAULT_SYNC_BYTES;
+
+    private DownloadJournal(final FileChannel journal, final long contentLength, final int chunkSize) {
+        this.journal = journal;
+        this.contentLength = contentLength;
+        this.chunkSize = chunkSize;
+        this.chunkCount = (int) ((contentLength + chunkSize - 1) / chunkSize);
+    }
+
+    private static int checksum(final ByteBuffer buffer, final int offset, final int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(buffer.array(), offset, length);
+        return (int) crc.getValue();
+    }
+
+    static DownloadJournal create(final File path, final long contentLength) throws IOException {
+        final FileChannel channel = FileChannel.open(path.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putLong(contentLength).putInt(CHUNK_SIZE);
+        header.putInt(checksum(header, 0, HEADER_SIZE - 4));
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        channel.force(false);
+        return new DownloadJournal(channel, contentLength, CHUNK_SIZE);
+    }
+
+    // Returns null if there's no usable journal for a package of this length. Recorded chunks are
+    // checked against the package contents and corrupt ones are downloaded again.
+    static DownloadJournal open(final File path, final File data, final long contentLength) throws IOException {
+        if (!path.exists() || !data.exists()) {
+            return null;
+        }
+        final FileChannel channel = FileChannel.open(path.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (channel.read(header, 0) != HEADER_SIZE ||
+                    header.getInt(0) != MAGIC ||
+                    header.getInt(HEADER_SIZE - 4) != checksum(header, 0, HEADER_SIZE - 4)) {
+                Log.w(TAG, "discarding invalid journal");
+                channel.close();
+                return null;
+            }
+            if (header.getLong(4) != contentLength) {
+                Log.d(TAG, "package length changed from " + header.getLong(4) + " to " + contentLength);
+                channel.close();
+                return null;
+            }
+            final DownloadJournal journal = new DownloadJournal(channel, contentLength, header.getInt(12));
+
+            final ByteBuffer records = ByteBuffer.allocate((int) (channel.size() - HEADER_SIZE));
+            while (records.hasRemaining() && channel.read(records, HEADER_SIZE + records.position()) != -1) {}
+            final int recordCount = records.position() / RECORD_SIZE;
+            int valid = 0;
+            try (final FileChannel dataChannel = FileChannel.open(data.toPath(), StandardOpenOption.READ)) {
+                final ByteBuffer chunk = ByteBuffer.allocate(journal.chunkSize);
+                for (; valid < recordCount; valid++) {
+                    final int offset = valid * RECORD_SIZE;
+                    final int index = records.getInt(offset);
+                    if (records.getInt(offset + 8) != checksum(records, offset, 8) ||
+                            index < 0 || index >= journal.chunkCount) {
+                        Log.w(TAG, "ignoring torn journal record " + valid);
+                        break;
+                    }
+                    chunk.clear();
+                    chunk.limit(journal.chunkLength(index));
+                    while (chunk.hasRemaining() && dataChannel.read(chunk, journal.chunkStart(index) + chunk.position()) != -1) {}
+                    if (!chunk.hasRemaining() && checksum(chunk, 0, chunk.limit()) == records.getInt(offset + 4)) {
+                        journal.completed.set(index);
+                    } else {
+                        Log.w(TAG, "chunk " + index + " is corrupt, fetching it again");
+                    }
+                }
+            }
+            // drop a torn tail so new records are appended after the last valid one
+            channel.truncate(HEADER_SIZE + (long) valid * RECORD_SIZE);
+            Log.d(TAG, "resuming with " + journal.completed.cardinality() + " of " + journal.chunkCount + " chunks");
+            return journal;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    long getContentLength() {
+        return contentLength;
+    }
+
+    int getChunkCount() {
+        return chunkCount;
+    }
+
+    long chunkStart(final int chunk) {
+        return (long) chunk * chunkSize;
+    }
+
+    int chunkLength(final int chunk) {
+        return (int) Math.min(chunkSize, contentLength - chunkStart(chunk));
+    }
+
+    // A larger batch flushes less often but more has to be downloaded again after a crash, with 0
+    // syncing every chunk.
+    synchronized void setSyncBytes(final long syncBytes) {
+        this.syncBytes = syncBytes;
+    }
+
+    synchronized boolean isCompleted(final int chunk) {
+        return completed.get(chunk);
+    }
+
+    synchronized boolean isComplete() {
+        return completed.cardinality() == chunkCount;
+    }
+
+    synchronized long getCompletedBytes() {
+        long bytes = 0;
+        for (int chunk = completed.nextSetBit(0); chunk >= 0; chunk = completed.nextSetBit(chunk + 1)) {
+            bytes += chunkLength(chunk);
+        }
+        return bytes;
+    }
+
+    // Marks a chunk written to data as completed, syncing once a batch has accumulated.
+    synchronized void complete(final int chunk, final int crc, final FileChannel data) throws IOException {
+        pending.add(new int[] { chunk, crc });
+        pendingBytes += chunkLength(chunk);
+        if (pendingBytes >= syncBytes) {
+            sync(data);
+        }
+    }
+
+    synchronized void sync(final FileChannel data) throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        // the chunk contents need to be durable before the records referring to them
+        data.force(false);
+        final ByteBuffer records = ByteBuffer.allocate(pending.size() * RECORD_SIZE);
+        for (final int[] record : pending) {
+            final int offset = records.position();
+            records.putInt(record[0]).putInt(record[1]);
+            records.putInt(checksum(records, offset, 8));
+        }
+        records.flip();
+        while (records.hasRemaining()) {
+            journal.write(records, journal.size());
+        }
+        journal.force(false);
+        for (final int[] record : pending) {
+            completed.set(record[0]);
+        }
+        pending.clear();
+        pendingBytes = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        journal.close();
+    }
+}
@@ -0,0 +1,58 @@
+package app.seamlessupdate.client;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+// Logging for the core, which can't use android.util.Log since it also runs on a plain JVM. The
+// app forwards it to android.util.Log and otherwise messages go to standard error.
+final class Log {
+    // same values as android.util.Log
+    static final int DEBUG = 3;
+    static final int WARN = 5;
+    static final int ERROR = 6;
+
+    interface Sink {
+        void println(int priority, String tag, String msg, Throwable tr);
+    }
+
+    private static volatile Sink sink = (priority, tag, msg, tr) -> {
+        final StringWriter writer = new StringWriter();
+        writer.append("DIWE".charAt(Math.max(0, Math.min(3, priority - DEBUG)))).append('/')
+                .append(tag).append(": ").append(msg);
+        if (tr != null) {
+            writer.append('\n');
+            tr.printStackTrace(new PrintWriter(writer));
+        }
+        System.err.println(writer);
+    };
+
+    private Log() {}
+
+    static void setSink(final Sink sink) {
+        Log.sink = sink;
+    }
+
+    static void d(final String tag, final String msg) {
+        sink.println(DEBUG, tag, msg, null);
+    }
+
+    static void d(final String tag, final String msg, final Throwable tr) {
+        sink.println(DEBUG, tag, msg, tr);
+    }
+
+    static void w(final String tag, final String msg) {
+        sink.println(WARN, tag, msg, null);
+    }
+
+    static void w(final String tag, final String msg, final Throwable tr) {
+        sink.println(WARN, tag, msg, tr);
+    }
+
+    static void e(final String tag, final String msg) {
+        sink.println(ERROR, tag, msg, null);
+    }
+
+    static void e(final String tag, final String msg, final Throwable tr) {
+        sink.println(ERROR, tag, msg, tr);
+    }
+}
@@ -0,0 +1,222 @@
+package app.seamlessupdate.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Picks which mirror of the update server to use. Mirrors are ranked by a health score combining
+// the round trip time of a probe, the throughput seen while downloading from them and how often
+// they failed recently, kept between attempts as one line per mirror of "<url> <rtt ms>
+// <throughput B/s> <failures> <probe time ms>". Probes are raced against all mirrors when the
+// scores are stale, and a failure moves on to the next mirror in the ranking.
+class Mirrors {
+    private static final String TAG = "Mirrors";
+    private static final long PROBE_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(6);
+    private static final long PROBE_TIMEOUT_MILLIS = 5000;
+    // assumed for a mirror nothing was downloaded from yet
+    private static final long DEFAULT_THROUGHPUT = 1024 * 1024;
+    // the cost of a mirror is the expected time to fetch a chunk of this size
+    private static final long COST_BYTES = DownloadJournal.CHUNK_SIZE;
+    // weight of a new throughput measurement against the previous ones
+    private static final double THROUGHPUT_WEIGHT = 0.5;
+
+    private static class Health {
+        final String url;
+        long rttMillis = -1;
+        long throughput = -1;
+        int failures;
+        long probeTime;
+
+        Health(final String url) {
+            this.url = url;
+        }
+
+        long getCost() {
+            final long rtt = rttMillis == -1 ? PROBE_TIMEOUT_MILLIS : rttMillis;
+            final long seconds = COST_BYTES * 1000 / (throughput <= 0 ? DEFAULT_THROUGHPUT : throughput);
+            // recent failures outweigh speed
+            return (rtt + seconds) * (1 + (long) failures * failures);
+        }
+    }
+
+    private final Updater.Transport transport;
+    private final Updater.PreferencesStore preferences;
+    private final List<Health> ranking = new ArrayList<>();
+    private int current;
+
+    Mirrors(final Updater.Transport transport, final Updater.PreferencesStore preferences) {
+        this.transport = transport;
+        this.preferences = preferences;
+        final Map<String, Health> saved = parse(preferences.getString(Updater.PREFERENCE_MIRROR_HEALTH, null));
+        for (final String url : transport.getMirrors()) {
+            final Health health = saved.get(url);
+            ranking.add(health != null ? health : new Health(url));
+        }
+        sort();
+    }
+
+    private static Map<String, Health> parse(final String saved) {
+        final Map<String, Health> health = new HashMap<>();
+        if (saved == null) {
+            return health;
+        }
+        for (final String line : saved.split("\n")) {
+            final String[] fields = line.split(" ");
+            if (fields.length != 5) {
+                continue;
+            }
+            try {
+                final Health entry = new Health(fields[0]);
+                entry.rttMillis = Long.parseLong(fields[1]);
+                entry.throughput = Long.parseLong(fields[2]);
+                entry.failures = Integer.parseInt(fields[3]);
+                entry.probeTime = Long.parseLong(fields[4]);
+                health.put(entry.url, entry);
+            } catch (NumberFormatException e) {}
+        }
+        return health;
+    }
+
+    private synchronized void save() {
+        final StringBuilder builder = new StringBuilder();
+        for (final Health health : ranking) {
+            if (builder.length() != 0) {
+                builder.append('\n');
+            }
+            builder.append(health.url).append(' ').append(health.rttMillis).append(' ')
+                    .append(health.throughput).append(' ').append(health.failures).append(' ')
+                    .append(health.probeTime);
+        }
+        preferences.putString(Updater.PREFERENCE_MIRROR_HEALTH, builder.toString());
+    }
+
+    private synchronized void sort() {
+        ranking.sort(Comparator.comparingLong(Health::getCost));
+        current = 0;
+    }
+
+    synchronized int size() {
+        return ranking.size();
+    }
+
+    // base URL of the mirror in use
+    synchronized String getCurrent() {
+        return ranking.get(current).url;
+    }
+
+    // Races a request for path against every mirror once the scores are stale, measuring the
+    // time until each responds. A mirror that doesn't respond in time counts as a failure.
+    void probe(final String path) throws InterruptedIOException {
+        final List<Health> targets;
+        synchronized (this) {
+            if (ranking.size() < 2) {
+                return;
+            }
+            final long now = System.currentTimeMillis();
+            boolean stale = false;
+            for (final Health health : ranking) {
+                stale |= now - health.probeTime >= PROBE_INTERVAL_MILLIS || health.rttMillis == -1;
+            }
+            if (!stale) {
+                return;
+            }
+            targets = new ArrayList<>(ranking);
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(targets.size());
+        try {
+            final List<Future<Long>> results = new ArrayList<>();
+            for (final Health health : targets) {
+                results.add(executor.submit(() -> measureRtt(health.url + path)));
+            }
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PROBE_TIMEOUT_MILLIS);
+            final long now = System.currentTimeMillis();
+            for (int i = 0; i < targets.size(); i++) {
+                final Health health = targets.get(i);
+                long rtt;
+                try {
+                    rtt = results.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (ExecutionException e) {
+                    if (!(e.getCause() instanceof IOException)) {
+                        throw new IllegalStateException(e.getCause());
+                    }
+                    rtt = -1;
+                } catch (TimeoutException e) {
+                    rtt = -1;
+                } catch (InterruptedException e) {
+                    // the attempt is being paused or cancelled, which says nothing about the
+                    // mirrors, so the scores are left as they were
+                    throw new InterruptedIOException("probe interrupted");
+                }
+                synchronized (this) {
+                    health.probeTime = now;
+                    if (rtt == -1) {
+                        health.failures++;
+                    } else {
+                        health.rttMillis = rtt;
+                        health.failures = 0;
+                    }
+                }
+                Log.d(TAG, "probed " + health.url + ": " + (rtt == -1 ? "failed" : rtt + " ms"));
+            }
+        } finally {
+            // abandons probes that are still waiting
+            executor.shutdownNow();
+        }
+        sort();
+        save();
+        Log.d(TAG, "using " + getCurrent());
+    }
+
+    private long measureRtt(final String url) throws IOException {
+        final long start = System.nanoTime();
+        final HttpURLConnection connection = transport.open(url);
+        try {
+            connection.setRequestMethod("HEAD");
+            final int responseCode = connection.getResponseCode();
+            if (responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                throw new IOException("unexpected response code " + responseCode + " for " + url);
+            }
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        } finally {
+            Connections.release(connection);
+        }
+    }
+
+    // Records a failed request to url and moves on to the next mirror if it came from the one in
+    // use. Returns whether the next request goes to a different mirror than the failed one.
+    synchronized boolean onFailure(final String url) {
+        final Health failed = ranking.get(current);
+        if (!url.startsWith(failed.url)) {
+            // another failure moved on from that mirror already
+            return true;
+        }
+        failed.failures++;
+        save();
+        if (current + 1 == ranking.size()) {
+            return false;
+        }
+        current++;
+        Log.d(TAG, "failing over from " + failed.url + " to " + getCurrent());
+        return true;
+    }
+
+    // records the throughput of a download from the mirror in use
+    synchronized void onThroughput(final long throughput) {
+        final Health health = ranking.get(current);
+        health.throughput = health.throughput <= 0 ? throughput :
+                (long) (THROUGHPUT_WEIGHT * throughput + (1 - THROUGHPUT_WEIGHT) * health.throughput);
+        health.failures = 0;
+        save();
+    }
+}
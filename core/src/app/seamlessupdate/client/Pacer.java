@@ -0,0 +1,80 @@
+package app.seamlessupdate.client;
+
+import java.util.concurrent.TimeUnit;
+
+// Scales an attempt down while the device is hot or short on battery, so the update doesn't
+// compete with foreground apps or add to thermal throttling. The app reports the device
+// condition as a level, which the download polls for its connection and buffer limits and the
+// installation for whether update_engine should be suspended.
+class Pacer {
+    private static final String TAG = "Pacer";
+    static final int LEVEL_NONE = 0;
+    static final int LEVEL_LIGHT = 1;
+    static final int LEVEL_SEVERE = 2;
+    static final int LEVEL_CRITICAL = 3;
+    // the condition is only read again after this long
+    private static final long POLL_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final int[] MAX_CONNECTIONS = { Integer.MAX_VALUE, 2, 1, 1 };
+    private static final int[] MAX_BUFFER_SIZE = { Integer.MAX_VALUE, 256 * 1024, 64 * 1024, 64 * 1024 };
+
+    interface Condition {
+        int getLevel();
+    }
+
+    private final Condition condition;
+    private int level = -1;
+    private int maxLevel;
+    private long polled;
+    private long throttledSince;
+    private long throttledNanos;
+
+    Pacer(final Condition condition) {
+        this.condition = condition;
+    }
+
+    synchronized int getLevel() {
+        final long now = System.nanoTime();
+        if (level != -1 && now - polled < POLL_INTERVAL_NANOS) {
+            return level;
+        }
+        polled = now;
+        final int current = Math.max(LEVEL_NONE, Math.min(LEVEL_CRITICAL, condition.getLevel()));
+        if (current != level) {
+            if (level != -1) {
+                Log.d(TAG, "pacing level " + level + " -> " + current);
+            }
+            if (level > LEVEL_NONE) {
+                throttledNanos += now - throttledSince;
+            }
+            throttledSince = now;
+            level = current;
+            maxLevel = Math.max(maxLevel, current);
+        }
+        return level;
+    }
+
+    int getMaxConnections() {
+        return MAX_CONNECTIONS[getLevel()];
+    }
+
+    int getMaxBufferSize() {
+        return MAX_BUFFER_SIZE[getLevel()];
+    }
+
+    boolean shouldSuspend() {
+        return getLevel() == LEVEL_CRITICAL;
+    }
+
+    // time spent at any level but LEVEL_NONE, including the current stretch
+    synchronized long getThrottledMillis() {
+        long throttled = throttledNanos;
+        if (level > LEVEL_NONE) {
+            throttled += System.nanoTime() - throttledSince;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(throttled);
+    }
+
+    synchronized int getMaxLevel() {
+        return maxLevel;
+    }
+}
@@ -0,0 +1,105 @@
+package app.seamlessupdate.client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+// META-INF/com/android/metadata of an update package
+class PackageMetadata {
+    static final String ENTRY_NAME = "META-INF/com/android/metadata";
+
+    private String device;
+    private String serialno;
+    private String type;
+    private String sourceIncremental;
+    private String sourceFingerprint;
+    private String[] streamingPropertyFiles;
+    private long timestamp;
+
+    // The metadata may be read before the package is verified, so malformed values are rejected
+    // like any other metadata the device can't accept.
+    static PackageMetadata parse(final BufferedReader reader) throws IOException, GeneralSecurityException {
+        final PackageMetadata metadata = new PackageMetadata();
+        for (String line; (line = reader.readLine()) != null; ) {
+            // split at the first '=' only, without String.split allocating an array per line
+            final int separator = line.indexOf('=');
+            if (separator == -1) {
+                continue;
+            }
+            final String key = line.substring(0, separator);
+            final String value = line.substring(separator + 1);
+            switch (key) {
+                case "post-timestamp":
+                    try {
+                        metadata.timestamp = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        throw new GeneralSecurityException("invalid post-timestamp: " + value, e);
+                    }
+                    break;
+                case "serialno":
+                    metadata.serialno = value;
+                    break;
+                case "pre-device":
+                    metadata.device = value;
+                    break;
+                case "ota-type":
+                    metadata.type = value;
+                    break;
+                case "ota-streaming-property-files":
+                    metadata.streamingPropertyFiles = value.trim().split(",");
+                    break;
+                case "pre-build-incremental":
+                    metadata.sourceIncremental = value;
+                    break;
+                case "pre-build":
+                    metadata.sourceFingerprint = value;
+                    break;
+            }
+        }
+        return metadata;
+    }
+
+    void check(final long targetBuildDate, final Updater.PropertySource properties) throws GeneralSecurityException {
+        if (timestamp != targetBuildDate) {
+            throw new GeneralSecurityException("timestamp does not match server metadata");
+        }
+        if (!properties.get(Updater.PROPERTY_DEVICE, "").equals(device)) {
+            throw new GeneralSecurityException("device mismatch");
+        }
+        if (serialno != null) {
+            throw new GeneralSecurityException("serialno constraint not permitted");
+        }
+        if (!"AB".equals(type)) {
+            throw new GeneralSecurityException("package is not an A/B update");
+        }
+        if (sourceIncremental != null && !sourceIncremental.equals(properties.get(Updater.PROPERTY_INCREMENTAL, ""))) {
+            throw new GeneralSecurityException("source incremental mismatch");
+        }
+        if (sourceFingerprint != null && !sourceFingerprint.equals(properties.get(Updater.PROPERTY_FINGERPRINT, ""))) {
+            throw new GeneralSecurityException("source fingerprint mismatch");
+        }
+    }
+
+    // Returns the offset and size of a stored entry from ota-streaming-property-files or null.
+    long[] getPropertyFile(final String name) throws GeneralSecurityException {
+        if (streamingPropertyFiles == null) {
+            throw new GeneralSecurityException("missing ota-streaming-property-files");
+        }
+        for (final String streamingPropertyFile : streamingPropertyFiles) {
+            final String properties[] = streamingPropertyFile.split(":");
+            if (name.equals(properties[0])) {
+                try {
+                    final long offset = Long.parseLong(properties[1]);
+                    final long size = Long.parseLong(properties[2]);
+                    if (offset < 0 || size < 0) {
+                        throw new GeneralSecurityException("invalid streaming property file: " + streamingPropertyFile);
+                    }
+                    return new long[] { offset, size };
+                } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                    throw new GeneralSecurityException("invalid streaming property file: " + streamingPropertyFile, e);
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,236 @@
+package app.seamlessupdate.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import sun.security.pkcs.PKCS7;
+import sun.security.pkcs.SignerInfo;
+
+// Computes the whole-file digest checked by RecoverySystem.verifyPackage on a background thread
+// following the download, so only the unsigned tail and the signature are left to check once the
+// download has finished. The checks mirror verifyPackage and anything it handles beyond the
+// SHA-256 RSA signatures produced by the release signing is left to verifyPackage.
+class PackageVerifier {
+    private static final String TAG = "PackageVerifier";
+    private static final File OTA_CERTS_PATH = new File("/system/etc/security/otacerts.zip");
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    // the signature covers all of the package except the archive comment and its 2 byte length
+    private static final int MAX_UNSIGNED_LENGTH = 0xffff + 2;
+    private static final int EOCD_LENGTH = 22;
+    // DER encoded DigestInfo for SHA-256 preceding the digest in a PKCS #1 v1.5 signature
+    private static final byte[] SHA256_DIGEST_INFO_PREFIX = {
+        0x30, 0x31, 0x30, 0x0d, 0x06, 0x09, 0x60, (byte) 0x86, 0x48, 0x01, 0x65, 0x03, 0x04, 0x02,
+        0x01, 0x05, 0x00, 0x04, 0x20
+    };
+
+    private final File file;
+    private final long length;
+    private final MessageDigest digest;
+    private final Thread thread;
+
+    private long hashed;
+    private long available;
+    private boolean finishing;
+    private boolean cancelled;
+    private IOException failure;
+
+    PackageVerifier(final File file, final long length) throws GeneralSecurityException {
+        this.file = file;
+        this.length = length;
+        this.digest = MessageDigest.getInstance("SHA-256");
+        this.thread = new Thread(this::hash, TAG);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    // bytes before this offset have been written and can be hashed
+    synchronized void setAvailable(final long available) {
+        if (available > this.available) {
+            this.available = available;
+            notifyAll();
+        }
+    }
+
+    synchronized void cancel() {
+        cancelled = true;
+        notifyAll();
+    }
+
+    // until the footer is available the exact signed length isn't known
+    private long hashLimit() {
+        return Math.min(available, length - MAX_UNSIGNED_LENGTH);
+    }
+
+    private void hash() {
+        // opened once there's something to hash since a new download creates the file later
+        FileChannel channel = null;
+        try {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            while (true) {
+                final long limit;
+                synchronized (this) {
+                    while (!cancelled && !finishing && hashLimit() <= hashed) {
+                        wait();
+                    }
+                    if (cancelled || hashLimit() <= hashed) {
+                        return;
+                    }
+                    limit = hashLimit();
+                }
+                if (channel == null) {
+                    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                }
+                hashed += hashRange(channel, buffer, hashed, limit);
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+            }
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                failure = new IOException(e);
+            }
+        } finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {}
+            }
+        }
+    }
+
+    private long hashRange(final FileChannel channel, final ByteBuffer buffer, final long start, final long end) throws IOException {
+        long position = start;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            final int bytesRead = channel.read(buffer, position);
+            if (bytesRead == -1) {
+                throw new IOException("unexpected end of " + file + " at " + position);
+            }
+            buffer.flip();
+            digest.update(buffer);
+            position += bytesRead;
+        }
+        return position - start;
+    }
+
+    private static List<PublicKey> getTrustedKeys() throws IOException, GeneralSecurityException {
+        final List<PublicKey> keys = new ArrayList<>();
+        final CertificateFactory cf = CertificateFactory.getInstance("X.509");
+        try (final ZipFile zipFile = new ZipFile(OTA_CERTS_PATH)) {
+            final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                keys.add(cf.generateCertificate(zipFile.getInputStream(entries.nextElement())).getPublicKey());
+            }
+        }
+        return keys;
+    }
+
+    // Returns false if the package needs to be checked with RecoverySystem.verifyPackage instead.
+    boolean finish() throws IOException, GeneralSecurityException {
+        synchronized (this) {
+            available = length;
+            finishing = true;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            cancel();
+            throw new IOException(e);
+        }
+        synchronized (this) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() != length) {
+                throw new IOException("expected " + length + " bytes but " + file + " has " + raf.length());
+            }
+            raf.seek(length - 6);
+            final byte[] footer = new byte[6];
+            raf.readFully(footer);
+            if (footer[2] != (byte) 0xff || footer[3] != (byte) 0xff) {
+                throw new SignatureException("no signature in file (no footer)");
+            }
+            final int commentSize = (footer[4] & 0xff) | ((footer[5] & 0xff) << 8);
+            final int signatureStart = (footer[0] & 0xff) | ((footer[1] & 0xff) << 8);
+
+            final byte[] eocd = new byte[commentSize + EOCD_LENGTH];
+            raf.seek(length - eocd.length);
+            raf.readFully(eocd);
+            if (eocd[0] != 0x50 || eocd[1] != 0x4b || eocd[2] != 0x05 || eocd[3] != 0x06) {
+                throw new SignatureException("no signature in file (bad footer)");
+            }
+            for (int i = 4; i < eocd.length - 3; i++) {
+                if (eocd[i] == 0x50 && eocd[i + 1] == 0x4b && eocd[i + 2] == 0x05 && eocd[i + 3] == 0x06) {
+                    throw new SignatureException("EOCD marker found after start of EOCD");
+                }
+            }
+
+            final PKCS7 block = new PKCS7(new ByteArrayInputStream(eocd, eocd.length - signatureStart, signatureStart));
+            final X509Certificate[] certificates = block.getCertificates();
+            if (certificates == null || certificates.length == 0) {
+                throw new SignatureException("signature contains no certificates");
+            }
+            final PublicKey signatureKey = certificates[0].getPublicKey();
+            final SignerInfo[] signerInfos = block.getSignerInfos();
+            if (signerInfos == null || signerInfos.length == 0) {
+                throw new SignatureException("signature contains no signedData");
+            }
+            final SignerInfo signerInfo = signerInfos[0];
+            if (!getTrustedKeys().contains(signatureKey)) {
+                throw new SignatureException("signature doesn't match any trusted key");
+            }
+
+            if (signerInfo.getAuthenticatedAttributes() != null ||
+                    !"SHA-256".equals(signerInfo.getDigestAlgorithmId().getName()) ||
+                    !(signatureKey instanceof RSAPublicKey)) {
+                Log.d(TAG, "unsupported signature format, deferring to verifyPackage");
+                return false;
+            }
+
+            final long signedLength = length - commentSize - 2;
+            hashed += hashRange(raf.getChannel(), ByteBuffer.allocate(MAX_UNSIGNED_LENGTH), hashed, signedLength);
+
+            final Signature signature = Signature.getInstance("NONEwithRSA");
+            signature.initVerify(signatureKey);
+            signature.update(SHA256_DIGEST_INFO_PREFIX);
+            signature.update(digest.digest());
+            if (!signature.verify(signerInfo.getEncryptedDigest())) {
+                throw new SignatureException("signature digest verification failed");
+            }
+        }
+
+        try (final ZipFile zipFile = new ZipFile(file)) {
+            if (zipFile.getEntry("compatibility.zip") != null) {
+                Log.d(TAG, "package has compatibility entry, deferring to verifyPackage");
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,300 @@
+package app.seamlessupdate.client;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+
+// Loopback HTTP server handing update_engine the payload from a package that is still being
+// downloaded. Reads of bytes that haven't arrived yet block until they do, which propagates back
+// to update_engine through TCP flow control. update_engine fetches through one connection at a
+// time, so only one client is served and a new connection replaces the last.
+//
+// update_engine's HTTP fetcher refuses plain http URLs on official builds, so this only works on
+// development builds, which is why overlapping the installation is off unless enabled there. The
+// file descriptor it can be handed instead has to be seekable, which rules out a pipe fed by the
+// download.
+class PayloadServer implements AutoCloseable {
+    private static final String TAG = "PayloadServer";
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_HEADER_LENGTH = 16 * 1024;
+
+    private final File file;
+    private final long payloadOffset;
+    private final long payloadSize;
+    private final ServerSocket serverSocket;
+    private final String path;
+    private Socket client;
+
+    private long available;
+    private IOException failure;
+    private boolean closed;
+
+    PayloadServer(final File file, final long payloadOffset, final long payloadSize) throws IOException {
+        this.file = file;
+        this.payloadOffset = payloadOffset;
+        this.payloadSize = payloadSize;
+        this.serverSocket = new ServerSocket(0, 4, InetAddress.getLoopbackAddress());
+        // other apps can reach loopback too, so the payload is only served under an unguessable path
+        final byte[] token = new byte[16];
+        new SecureRandom().nextBytes(token);
+        final StringBuilder builder = new StringBuilder("/");
+        for (final byte b : token) {
+            builder.append(String.format("%02x", b));
+        }
+        this.path = builder.toString();
+    }
+
+    String getUrl() {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + path;
+    }
+
+    void start() {
+        final Thread thread = new Thread(this::acceptLoop, TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // bytes of the package before this offset are on disk
+    synchronized void setAvailable(final long available) {
+        if (available > this.available) {
+            this.available = available;
+            notifyAll();
+        }
+    }
+
+    synchronized void fail(final IOException e) {
+        failure = e;
+        notifyAll();
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            closeClient();
+        }
+        try {
+            serverSocket.close();
+        } catch (IOException e) {}
+    }
+
+    private synchronized void closeClient() {
+        if (client != null) {
+            try {
+                client.close();
+            } catch (IOException e) {}
+        }
+        // wakes up its response waiting for data
+        notifyAll();
+    }
+
+    private synchronized void awaitAvailable(final Socket socket, final long end) throws IOException {
+        while (available < end) {
+            if (failure != null) {
+                throw new IOException("download failed", failure);
+            }
+            if (closed) {
+                throw new IOException("server closed");
+            }
+            if (socket.isClosed()) {
+                throw new IOException("connection replaced");
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    private void acceptLoop() {
+        Thread serving = null;
+        while (true) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            synchronized (this) {
+                if (closed) {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {}
+                    return;
+                }
+                closeClient();
+                client = socket;
+            }
+            if (serving != null) {
+                try {
+                    serving.join();
+                } catch (InterruptedException e) {
+                    close();
+                    return;
+                }
+            }
+            serving = new Thread(() -> serve(socket), TAG);
+            serving.setDaemon(true);
+            serving.start();
+        }
+    }
+
+    private static String readLine(final InputStream input) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = input.read()) != -1 && c != '\n') {
+            if (line.size() >= MAX_HEADER_LENGTH) {
+                throw new IOException("request header too long");
+            }
+            if (c != '\r') {
+                line.write(c);
+            }
+        }
+        if (c == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString(StandardCharsets.ISO_8859_1.name());
+    }
+
+    private void serve(final Socket socket) {
+        // opened once data is available since the download may not have created the file yet
+        FileChannel channel = null;
+        try (final InputStream input = new BufferedInputStream(socket.getInputStream());
+                final OutputStream output = socket.getOutputStream()) {
+            final WritableByteChannel target = Channels.newChannel(output);
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            String requestLine;
+            while ((requestLine = readLine(input)) != null) {
+                String range = null;
+                for (String header; (header = readLine(input)) != null && !header.isEmpty(); ) {
+                    final int colon = header.indexOf(':');
+                    if (colon != -1 && header.substring(0, colon).trim().equalsIgnoreCase("Range")) {
+                        range = header.substring(colon + 1).trim();
+                    }
+                }
+                final String[] request = requestLine.split(" ");
+                final boolean head = request.length == 3 && "HEAD".equals(request[0]);
+                if (request.length != 3 || !(head || "GET".equals(request[0])) || !path.equals(request[1])) {
+                    writeHeaders(output, "404 Not Found", 0, null);
+                    continue;
+                }
+
+                long start = 0;
+                long end = payloadSize - 1;
+                String status = "200 OK";
+                if (range != null) {
+                    final long[] parsed = parseRange(range);
+                    if (parsed == null) {
+                        writeHeaders(output, "416 Range Not Satisfiable", 0, "Content-Range: bytes */" + payloadSize);
+                        continue;
+                    }
+                    start = parsed[0];
+                    end = parsed[1];
+                    status = "206 Partial Content";
+                }
+                writeHeaders(output, status, end - start + 1, range == null ? null :
+                        "Content-Range: bytes " + start + "-" + end + "/" + payloadSize);
+                if (head) {
+                    continue;
+                }
+
+                for (long position = start; position <= end; ) {
+                    final int length = (int) Math.min(BUFFER_SIZE, end + 1 - position);
+                    final long fileOffset = payloadOffset + position;
+                    awaitAvailable(socket, fileOffset + length);
+                    if (channel == null) {
+                        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                    }
+                    buffer.clear();
+                    buffer.limit(length);
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, fileOffset + buffer.position()) == -1) {
+                            throw new IOException("unexpected end of " + file);
+                        }
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        target.write(buffer);
+                    }
+                    position += length;
+                }
+                output.flush();
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "connection closed", e);
+        } finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {}
+            }
+            synchronized (this) {
+                if (client == socket) {
+                    client = null;
+                }
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {}
+        }
+    }
+
+    // Returns the inclusive bounds of a single byte range within the payload or null.
+    private long[] parseRange(final String range) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') != -1) {
+            return null;
+        }
+        final String spec = range.substring("bytes=".length()).trim();
+        final int dash = spec.indexOf('-');
+        if (dash == -1) {
+            return null;
+        }
+        try {
+            final long start;
+            final long end;
+            if (dash == 0) {
+                final long suffix = Long.parseLong(spec.substring(1));
+                start = Math.max(0, payloadSize - suffix);
+                end = payloadSize - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                end = dash == spec.length() - 1 ? payloadSize - 1 :
+                        Math.min(payloadSize - 1, Long.parseLong(spec.substring(dash + 1)));
+            }
+            if (start > end || start >= payloadSize) {
+                return null;
+            }
+            return new long[] { start, end };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static void writeHeaders(final OutputStream output, final String status, final long contentLength,
+            final String extra) throws IOException {
+        final StringBuilder headers = new StringBuilder();
+        headers.append("HTTP/1.1 ").append(status).append("\r\n");
+        headers.append("Accept-Ranges: bytes\r\n");
+        headers.append("Content-Length: ").append(contentLength).append("\r\n");
+        if (extra != null) {
+            headers.append(extra).append("\r\n");
+        }
+        headers.append("\r\n");
+        output.write(headers.toString().getBytes(StandardCharsets.ISO_8859_1));
+        output.flush();
+    }
+}
@@ -0,0 +1,120 @@
+package app.seamlessupdate.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Chooses how long to wait before checking for updates again. A next-check hint given by the
+// server takes precedence, but never brings checks closer together than the default interval.
+// Otherwise checks are frequent while a release is expected, based on the spacing of past
+// releases, and back off the longer checks keep finding nothing new.
+//
+// It only depends on the state and time it's given, so the caller supplies the clock.
+class PollingPolicy {
+    static final long MIN_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    static final long DEFAULT_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(4);
+    static final long MAX_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(24);
+    // the interval doubles after each run of this many checks without an update
+    static final int BACKOFF_CHECKS = 6;
+    // time on either side of the expected release that's checked at the minimum interval
+    static final long RELEASE_WINDOW_MILLIS = TimeUnit.HOURS.toMillis(12);
+    static final int MAX_RELEASES = 8;
+    // a metadata check with its headers, for the job scheduler's estimate
+    static final long CHECK_BYTES = 4 * 1024;
+    // seconds until the server expects a check to be worthwhile again, sent with the metadata
+    static final String NEXT_CHECK_HEADER = "X-Next-Check";
+
+    private final int emptyChecks;
+    private final long hintMillis;
+    private final long[] releases;
+
+    // releases are build dates in seconds, as in ro.build.date.utc, with hintMillis -1 if the
+    // server gave no hint
+    PollingPolicy(final int emptyChecks, final long hintMillis, final long[] releases) {
+        this.emptyChecks = emptyChecks;
+        this.hintMillis = hintMillis;
+        this.releases = releases.clone();
+        Arrays.sort(this.releases);
+    }
+
+    long getIntervalMillis(final long nowMillis) {
+        if (hintMillis >= 0) {
+            return clamp(Math.max(DEFAULT_INTERVAL_MILLIS, hintMillis));
+        }
+        final long expected = getExpectedReleaseMillis();
+        if (expected != -1 && Math.abs(nowMillis - expected) <= RELEASE_WINDOW_MILLIS) {
+            return MIN_INTERVAL_MILLIS;
+        }
+        final int doublings = Math.min(emptyChecks / BACKOFF_CHECKS, 8);
+        return clamp(DEFAULT_INTERVAL_MILLIS << doublings);
+    }
+
+    // last release plus the median spacing of past releases, or -1 with too few to tell
+    long getExpectedReleaseMillis() {
+        if (releases.length < 3) {
+            return -1;
+        }
+        final long[] gaps = new long[releases.length - 1];
+        for (int i = 1; i < releases.length; i++) {
+            gaps[i - 1] = releases[i] - releases[i - 1];
+        }
+        Arrays.sort(gaps);
+        final long median = gaps[gaps.length / 2];
+        return TimeUnit.SECONDS.toMillis(releases[releases.length - 1] + median);
+    }
+
+    private static long clamp(final long intervalMillis) {
+        return Math.max(MIN_INTERVAL_MILLIS, Math.min(MAX_INTERVAL_MILLIS, intervalMillis));
+    }
+
+    // Returns the next-check hint in milliseconds or -1 if there's none.
+    static long parseNextCheck(final String nextCheck) {
+        if (nextCheck == null) {
+            return -1;
+        }
+        try {
+            final long seconds = Long.parseLong(nextCheck.trim());
+            return seconds < 0 ? -1 : TimeUnit.SECONDS.toMillis(seconds);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Releases are kept as a comma separated list of build dates, most recent last.
+    static long[] parseReleases(final String releases) {
+        if (releases == null || releases.isEmpty()) {
+            return new long[0];
+        }
+        final String[] fields = releases.split(",");
+        final long[] dates = new long[fields.length];
+        int count = 0;
+        for (final String field : fields) {
+            try {
+                dates[count] = Long.parseLong(field);
+                count++;
+            } catch (NumberFormatException e) {}
+        }
+        return Arrays.copyOf(dates, count);
+    }
+
+    static String addRelease(final String releases, final long buildDate) {
+        final long[] dates = parseReleases(releases);
+        final List<Long> kept = new ArrayList<>();
+        for (final long date : dates) {
+            if (date != buildDate) {
+                kept.add(date);
+            }
+        }
+        kept.add(buildDate);
+        kept.sort(null);
+        final StringBuilder builder = new StringBuilder();
+        for (final long date : kept.subList(Math.max(0, kept.size() - MAX_RELEASES), kept.size())) {
+            if (builder.length() != 0) {
+                builder.append(',');
+            }
+            builder.append(date);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,120 @@
+package app.seamlessupdate.client;
+
+// Coalesces progress updates so only the latest state is posted, at most once per interval and
+// only when it differs from what was posted last. Updates only record the state and schedule a
+// post, so callers never wait for the post itself.
+class ProgressThrottle {
+    interface Scheduler {
+        // monotonic time in milliseconds
+        long now();
+
+        void schedule(Runnable task, long delayMillis);
+
+        void cancel(Runnable task);
+    }
+
+    interface Sink {
+        void post(int title, int progress, boolean paused);
+    }
+
+    private final Scheduler scheduler;
+    private final Sink sink;
+    private final long intervalMillis;
+    private final Runnable post = this::post;
+
+    // guarded by this
+    private int pendingTitle;
+    private int pendingProgress;
+    private boolean pendingPaused;
+    private int postedTitle;
+    private int postedProgress;
+    private boolean postedPaused;
+    private boolean scheduled;
+    private long lastPostTime;
+    private long posted;
+    private long suppressed;
+
+    ProgressThrottle(final Scheduler scheduler, final Sink sink, final long intervalMillis) {
+        this.scheduler = scheduler;
+        this.sink = sink;
+        this.intervalMillis = intervalMillis;
+    }
+
+    // keeps the paused state of the previous update
+    synchronized void update(final int title, final int progress) {
+        update(title, progress, pendingPaused);
+    }
+
+    synchronized void update(final int title, final int progress, final boolean paused) {
+        if (scheduled) {
+            // replaces an update that was never posted
+            suppressed++;
+        } else if (title == postedTitle && progress == postedProgress && paused == postedPaused) {
+            suppressed++;
+            return;
+        }
+        pendingTitle = title;
+        pendingProgress = progress;
+        pendingPaused = paused;
+        if (!scheduled) {
+            scheduled = true;
+            final long delay = lastPostTime + intervalMillis - scheduler.now();
+            scheduler.schedule(post, Math.max(0, delay));
+        }
+    }
+
+    synchronized void setPaused(final boolean paused) {
+        if (pendingTitle != 0) {
+            update(pendingTitle, pendingProgress, paused);
+        } else {
+            // a pause during the check shows with the first progress update
+            pendingPaused = paused;
+        }
+    }
+
+    private void post() {
+        final int title;
+        final int progress;
+        final boolean paused;
+        synchronized (this) {
+            scheduled = false;
+            if (pendingTitle == postedTitle && pendingProgress == postedProgress
+                    && pendingPaused == postedPaused) {
+                suppressed++;
+                return;
+            }
+            title = pendingTitle;
+            progress = pendingProgress;
+            paused = pendingPaused;
+            postedTitle = title;
+            postedProgress = progress;
+            postedPaused = paused;
+            lastPostTime = scheduler.now();
+            posted++;
+        }
+        sink.post(title, progress, paused);
+    }
+
+    // forgets the state so the next update is posted whatever it is
+    synchronized void reset() {
+        pendingTitle = 0;
+        pendingPaused = false;
+        postedTitle = 0;
+        postedPaused = false;
+    }
+
+    void cancel() {
+        synchronized (this) {
+            scheduled = false;
+        }
+        scheduler.cancel(post);
+    }
+
+    synchronized long getPosted() {
+        return posted;
+    }
+
+    synchronized long getSuppressed() {
+        return suppressed;
+    }
+}
@@ -0,0 +1,325 @@
+package app.seamlessupdate.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Reads entries of a zip file on the server through Range requests without downloading it. Reads
+// go through a small cache of fixed size blocks, since the central directory, local headers and
+// small entries of a package tend to be close together.
+class RemoteZip {
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int ZIP64_EXTRA_FIELD_ID = 0x0001;
+    private static final int EOCD_LENGTH = 22;
+    private static final int ZIP64_EOCD_LOCATOR_LENGTH = 20;
+    private static final int ZIP64_EOCD_LENGTH = 56;
+    private static final int MAX_COMMENT_LENGTH = 0xffff;
+    private static final int CENTRAL_DIRECTORY_HEADER_LENGTH = 46;
+    private static final int LOCAL_HEADER_LENGTH = 30;
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+    // entries are read into memory, which is only meant for the small ones
+    private static final int MAX_ENTRY_SIZE = 16 * 1024 * 1024;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final int MAX_CACHED_BLOCKS = 32;
+
+    static class Entry {
+        final String name;
+        final int method;
+        final long compressedSize;
+        final long size;
+        final long localHeaderOffset;
+
+        Entry(final String name, final int method, final long compressedSize, final long size, final long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+
+    private final SegmentedDownload.ConnectionFactory factory;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<Long, byte[]> blocks = new LinkedHashMap<Long, byte[]>(MAX_CACHED_BLOCKS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Long, byte[]> eldest) {
+            return size() > MAX_CACHED_BLOCKS;
+        }
+    };
+    private long length = -1;
+    private int requests;
+
+    RemoteZip(final SegmentedDownload.ConnectionFactory factory) throws IOException {
+        this.factory = factory;
+
+        final byte[] tail = fetch(-1, EOCD_LENGTH + MAX_COMMENT_LENGTH);
+        if (length < tail.length) {
+            throw new IOException("server did not report the file length");
+        }
+        cacheTail(tail);
+        final ByteBuffer buffer = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN);
+        int eocd = -1;
+        for (int i = tail.length - EOCD_LENGTH; i >= 0; i--) {
+            if (buffer.getInt(i) == EOCD_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd == -1) {
+            throw new IOException("end of central directory not found");
+        }
+        long entryCount = buffer.getShort(eocd + 10) & 0xffff;
+        long centralDirectorySize = buffer.getInt(eocd + 12) & 0xffffffffL;
+        long centralDirectoryOffset = buffer.getInt(eocd + 16) & 0xffffffffL;
+
+        final long eocdOffset = length - tail.length + eocd;
+        if (centralDirectoryOffset == ZIP64_MAGIC || centralDirectorySize == ZIP64_MAGIC || entryCount == 0xffff) {
+            final ByteBuffer locator = read(eocdOffset - ZIP64_EOCD_LOCATOR_LENGTH, ZIP64_EOCD_LOCATOR_LENGTH);
+            if (locator.getInt(0) != ZIP64_EOCD_LOCATOR_SIGNATURE) {
+                throw new IOException("zip64 end of central directory locator not found");
+            }
+            final ByteBuffer zip64Eocd = read(locator.getLong(8), ZIP64_EOCD_LENGTH);
+            if (zip64Eocd.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                throw new IOException("bad zip64 end of central directory");
+            }
+            entryCount = zip64Eocd.getLong(32);
+            centralDirectorySize = zip64Eocd.getLong(40);
+            centralDirectoryOffset = zip64Eocd.getLong(48);
+        }
+        if (centralDirectorySize < 0 || centralDirectorySize > MAX_ENTRY_SIZE) {
+            throw new IOException("central directory too large: " + centralDirectorySize);
+        }
+
+        final ByteBuffer directory = read(centralDirectoryOffset, (int) centralDirectorySize);
+        try {
+            readCentralDirectory(directory, entryCount);
+        } catch (IndexOutOfBoundsException e) {
+            // the package isn't verified yet, so this is whatever the server sent
+            throw new IOException("malformed central directory", e);
+        }
+    }
+
+    private void readCentralDirectory(final ByteBuffer directory, final long entryCount) throws IOException {
+        for (long i = 0, position = 0; i < entryCount; i++) {
+            final int header = (int) position;
+            if (directory.getInt(header) != CENTRAL_DIRECTORY_SIGNATURE) {
+                throw new IOException("bad central directory header at " + header);
+            }
+            final int method = directory.getShort(header + 10) & 0xffff;
+            long compressedSize = directory.getInt(header + 20) & 0xffffffffL;
+            long size = directory.getInt(header + 24) & 0xffffffffL;
+            final int nameLength = directory.getShort(header + 28) & 0xffff;
+            final int extraLength = directory.getShort(header + 30) & 0xffff;
+            final int commentLength = directory.getShort(header + 32) & 0xffff;
+            long localHeaderOffset = directory.getInt(header + 42) & 0xffffffffL;
+            final String name = new String(directory.array(), header + CENTRAL_DIRECTORY_HEADER_LENGTH,
+                    nameLength, StandardCharsets.UTF_8);
+
+            // values that don't fit are moved to the zip64 extra field in this order
+            int extra = header + CENTRAL_DIRECTORY_HEADER_LENGTH + nameLength;
+            final int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                final int id = directory.getShort(extra) & 0xffff;
+                final int dataLength = directory.getShort(extra + 2) & 0xffff;
+                if (id == ZIP64_EXTRA_FIELD_ID) {
+                    int field = extra + 4;
+                    if (size == ZIP64_MAGIC) {
+                        size = directory.getLong(field);
+                        field += 8;
+                    }
+                    if (compressedSize == ZIP64_MAGIC) {
+                        compressedSize = directory.getLong(field);
+                        field += 8;
+                    }
+                    if (localHeaderOffset == ZIP64_MAGIC) {
+                        localHeaderOffset = directory.getLong(field);
+                    }
+                    break;
+                }
+                extra += 4 + dataLength;
+            }
+
+            entries.put(name, new Entry(name, method, compressedSize, size, localHeaderOffset));
+            position += CENTRAL_DIRECTORY_HEADER_LENGTH + nameLength + extraLength + commentLength;
+        }
+    }
+
+    // Fetches length bytes at offset, or the last length bytes if offset is negative.
+    private byte[] fetch(final long offset, final int length) throws IOException {
+        final HttpURLConnection connection = factory.open();
+        requests++;
+        boolean complete = false;
+        try {
+            connection.setRequestProperty("Range", offset < 0 ? "bytes=-" + length :
+                    "bytes=" + offset + "-" + (offset + length - 1));
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("unexpected response code " + connection.getResponseCode() + " for range request");
+            }
+            final String contentRange = connection.getHeaderField("Content-Range");
+            if (contentRange != null && contentRange.indexOf('/') != -1) {
+                try {
+                    this.length = Long.parseLong(contentRange.substring(contentRange.indexOf('/') + 1).trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException("invalid Content-Range: " + contentRange, e);
+                }
+            }
+            final ByteArrayOutputStream output = new ByteArrayOutputStream(length);
+            try (final InputStream input = connection.getInputStream()) {
+                final byte[] buffer = new byte[8192];
+                int bytesRead;
+                while (output.size() < length && (bytesRead = input.read(buffer)) != -1) {
+                    output.write(buffer, 0, bytesRead);
+                }
+            }
+            if (offset >= 0 && output.size() != length) {
+                throw new IOException("expected " + length + " bytes at " + offset + " but received " + output.size());
+            }
+            complete = true;
+            return output.toByteArray();
+        } finally {
+            // only a fully read response leaves the connection reusable
+            if (complete) {
+                Connections.release(connection);
+            } else {
+                connection.disconnect();
+            }
+        }
+    }
+
+    // keeps the whole blocks covered by the initial request for the end of the file
+    private void cacheTail(final byte[] tail) {
+        final long tailOffset = length - tail.length;
+        for (long block = (tailOffset + BLOCK_SIZE - 1) / BLOCK_SIZE; block * BLOCK_SIZE < length; block++) {
+            final int start = (int) (block * BLOCK_SIZE - tailOffset);
+            final int end = (int) Math.min(tail.length, start + (long) BLOCK_SIZE);
+            final byte[] data = new byte[end - start];
+            System.arraycopy(tail, start, data, 0, data.length);
+            blocks.put(block, data);
+        }
+    }
+
+    private ByteBuffer read(final long offset, final int length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > this.length) {
+            throw new IOException("read of " + length + " bytes at " + offset + " is out of bounds");
+        }
+        final byte[] result = new byte[length];
+        if (length == 0) {
+            return ByteBuffer.wrap(result).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        final long firstBlock = offset / BLOCK_SIZE;
+        final long lastBlock = (offset + length - 1) / BLOCK_SIZE;
+        // cached blocks are copied first, since caching the fetched ones can evict them
+        final boolean[] missing = new boolean[(int) (lastBlock - firstBlock + 1)];
+        for (long block = firstBlock; block <= lastBlock; block++) {
+            final byte[] data = blocks.get(block);
+            if (data == null) {
+                missing[(int) (block - firstBlock)] = true;
+            } else {
+                copyBlock(block, data, offset, result);
+            }
+        }
+        for (int i = 0; i < missing.length; i++) {
+            if (!missing[i]) {
+                continue;
+            }
+            // fetch the whole run of missing blocks with a single request
+            int runEnd = i;
+            while (runEnd + 1 < missing.length && missing[runEnd + 1]) {
+                runEnd++;
+            }
+            final long block = firstBlock + i;
+            final long missingEnd = firstBlock + runEnd;
+            final long start = block * BLOCK_SIZE;
+            final long end = Math.min(this.length, (missingEnd + 1) * BLOCK_SIZE);
+            final byte[] data = fetch(start, (int) (end - start));
+            for (long b = block; b <= missingEnd; b++) {
+                final int from = (int) ((b - block) * BLOCK_SIZE);
+                final byte[] blockData = new byte[Math.min(BLOCK_SIZE, data.length - from)];
+                System.arraycopy(data, from, blockData, 0, blockData.length);
+                copyBlock(b, blockData, offset, result);
+                blocks.put(b, blockData);
+            }
+            i = runEnd;
+        }
+        return ByteBuffer.wrap(result).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void copyBlock(final long block, final byte[] data, final long offset, final byte[] result) {
+        final long blockStart = block * BLOCK_SIZE;
+        final long from = Math.max(offset, blockStart);
+        final long to = Math.min(offset + result.length, blockStart + data.length);
+        if (to > from) {
+            System.arraycopy(data, (int) (from - blockStart), result, (int) (from - offset), (int) (to - from));
+        }
+    }
+
+    long length() {
+        return length;
+    }
+
+    int getRequestCount() {
+        return requests;
+    }
+
+    Entry getEntry(final String name) {
+        return entries.get(name);
+    }
+
+    long getDataOffset(final Entry entry) throws IOException {
+        final ByteBuffer header = read(entry.localHeaderOffset, LOCAL_HEADER_LENGTH);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("bad local header for " + entry.name);
+        }
+        return entry.localHeaderOffset + LOCAL_HEADER_LENGTH + (header.getShort(26) & 0xffff) +
+                (header.getShort(28) & 0xffff);
+    }
+
+    byte[] read(final Entry entry) throws IOException {
+        if (entry.size < 0 || entry.size > MAX_ENTRY_SIZE || entry.compressedSize > MAX_ENTRY_SIZE) {
+            throw new IOException(entry.name + " is too large to read into memory");
+        }
+        final byte[] data = read(getDataOffset(entry), (int) entry.compressedSize).array();
+        if (entry.method == METHOD_STORED) {
+            return data;
+        }
+        if (entry.method != METHOD_DEFLATED) {
+            throw new IOException("unsupported compression method " + entry.method + " for " + entry.name);
+        }
+        final Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            final byte[] output = new byte[(int) entry.size];
+            int inflated = 0;
+            while (inflated < output.length && !inflater.finished()) {
+                final int n = inflater.inflate(output, inflated, output.length - inflated);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += n;
+            }
+            if (inflated != output.length) {
+                throw new IOException("truncated entry " + entry.name);
+            }
+            return output;
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,531 @@
+package app.seamlessupdate.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+// Fetches the chunks of a file not yet recorded in its journal as concurrent Range requests,
+// writing each chunk at its own offset. The number of connections grows while doing so still
+// increases the measured throughput. Running it again after a failure continues where it stopped,
+// including the bytes already written for chunks that were cut short. A connection that drops
+// or stalls is reconnected from where its chunk stopped after a randomized exponential backoff,
+// so only repeated failures without progress end the download. A failed connection, or a sustained
+// drop in throughput compared to what the server first delivered, moves on to the next server
+// where the factory has one. A pacer can cap the connections and buffers while the device is hot
+// or short on battery.
+class SegmentedDownload {
+    private static final String TAG = "SegmentedDownload";
+    private static final int INITIAL_WORKERS = 2;
+    private static final int MAX_WORKERS = 6;
+    private static final long PROGRESS_INTERVAL_MILLIS = 1000;
+    private static final long SAMPLE_INTERVAL_NANOS = 4L * 1000 * 1000 * 1000;
+    // required relative throughput gain for keeping an additional connection
+    private static final double GROWTH_THRESHOLD = 1.1;
+    // a connection is stalled once it delivers less than this within the window
+    private static final long STALL_WINDOW_NANOS = 20L * 1000 * 1000 * 1000;
+    private static final long STALL_MIN_BYTES = 16 * 1024;
+    private static final long BACKOFF_BASE_MILLIS = 1000;
+    private static final long BACKOFF_MAX_MILLIS = 30000;
+    // a server is left once the throughput per connection stays below this fraction of the best
+    // it delivered for this many samples in a row
+    private static final double DROP_FRACTION = 0.25;
+    private static final int DROP_SAMPLES = 3;
+    static final int DEFAULT_RECONNECT_BUDGET = 6;
+
+    interface ConnectionFactory {
+        HttpURLConnection open() throws IOException;
+
+        // Called with the URL of a failed request, returning whether the next request goes to a
+        // different server, which is tried right away.
+        default boolean onFailure(String url) {
+            return false;
+        }
+    }
+
+    interface ProgressListener {
+        void onProgress(long contiguous, long downloaded, long contentLength);
+    }
+
+    // A response refusing the range request, which reconnecting won't change. Any other failure,
+    // including a protocol error from a connection dropped partway through the body, is retried.
+    static class RefusedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RefusedException(final String message) {
+            super(message);
+        }
+    }
+
+    private final ConnectionFactory factory;
+    private final File file;
+    private final DownloadJournal journal;
+    private final long contentLength;
+    private final int segmentCount;
+    private final AtomicLongArray segmentProgress;
+    // checksum of the bytes written so far for each partially fetched segment
+    private final CRC32[] partialCrc;
+    private final AtomicInteger nextSegment = new AtomicInteger();
+    private final AtomicInteger workers = new AtomicInteger();
+    private final AtomicInteger targetWorkers = new AtomicInteger(INITIAL_WORKERS);
+    private final AtomicLong downloaded = new AtomicLong();
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+    private final Set<Fetch> fetches = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger reconnects = new AtomicInteger();
+    // moves to another server, after which its throughput is measured from scratch
+    private final AtomicInteger failovers = new AtomicInteger();
+    private final Object lock = new Object();
+    private int reconnectBudget = DEFAULT_RECONNECT_BUDGET;
+    private Pacer pacer;
+    private volatile int maxBufferSize = Integer.MAX_VALUE;
+
+    private ExecutorService executor;
+    private FileChannel channel;
+
+    SegmentedDownload(final ConnectionFactory factory, final File file, final DownloadJournal journal) {
+        this.factory = factory;
+        this.file = file;
+        this.journal = journal;
+        this.contentLength = journal.getContentLength();
+        this.segmentCount = journal.getChunkCount();
+        this.segmentProgress = new AtomicLongArray(segmentCount);
+        this.partialCrc = new CRC32[segmentCount];
+        for (int segment = 0; segment < segmentCount; segment++) {
+            if (journal.isCompleted(segment)) {
+                segmentProgress.set(segment, segmentLength(segment));
+                downloaded.addAndGet(segmentLength(segment));
+            }
+        }
+    }
+
+    // connection currently fetching a segment, checked for stalls by the controller
+    private static class Fetch {
+        final HttpURLConnection connection;
+        final int segment;
+        // only used by the controller
+        long windowStart;
+        long windowProgress = -1;
+
+        Fetch(final HttpURLConnection connection, final int segment) {
+            this.connection = connection;
+            this.segment = segment;
+        }
+    }
+
+    // consecutive reconnects without progress allowed for a segment before giving up
+    void setReconnectBudget(final int reconnectBudget) {
+        this.reconnectBudget = reconnectBudget;
+    }
+
+    void setPacer(final Pacer pacer) {
+        this.pacer = pacer;
+    }
+
+    private int getMaxWorkers() {
+        return pacer == null ? MAX_WORKERS : Math.min(MAX_WORKERS, pacer.getMaxConnections());
+    }
+
+    int getReconnects() {
+        return reconnects.get();
+    }
+
+    private long segmentStart(final int segment) {
+        return journal.chunkStart(segment);
+    }
+
+    private long segmentLength(final int segment) {
+        return journal.chunkLength(segment);
+    }
+
+    // end of the prefix of the file without any holes
+    long getContiguous() {
+        long contiguous = 0;
+        for (int segment = 0; segment < segmentCount; segment++) {
+            final long progress = segmentProgress.get(segment);
+            contiguous += progress;
+            if (progress != segmentLength(segment)) {
+                break;
+            }
+        }
+        return contiguous;
+    }
+
+    void run(final ProgressListener listener) throws IOException {
+        nextSegment.set(0);
+        workers.set(0);
+        targetWorkers.set(Math.min(INITIAL_WORKERS, getMaxWorkers()));
+        failure.set(null);
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        executor = Executors.newCachedThreadPool();
+        try {
+            for (int i = 0; i < Math.min(targetWorkers.get(), segmentCount); i++) {
+                startWorker();
+            }
+
+            long sampleTime = System.nanoTime();
+            long sampleBytes = downloaded.get();
+            double bestThroughput = 0;
+            boolean growing = true;
+            final ThroughputDrop drop = new ThroughputDrop();
+            while (true) {
+                synchronized (lock) {
+                    if (workers.get() == 0) {
+                        break;
+                    }
+                    try {
+                        lock.wait(PROGRESS_INTERVAL_MILLIS);
+                    } catch (InterruptedException e) {
+                        fail(new IOException("download interrupted"));
+                    }
+                    if (workers.get() == 0) {
+                        break;
+                    }
+                }
+                listener.onProgress(getContiguous(), downloaded.get(), contentLength);
+
+                final long now = System.nanoTime();
+                checkStalls(now);
+                if (pacer != null) {
+                    // extra workers retire once done with their current segment
+                    final int maxWorkers = getMaxWorkers();
+                    if (targetWorkers.get() > maxWorkers) {
+                        Log.d(TAG, "pacing down to " + maxWorkers + " connections");
+                        targetWorkers.set(maxWorkers);
+                    }
+                    maxBufferSize = pacer.getMaxBufferSize();
+                }
+                if (now - sampleTime < SAMPLE_INTERVAL_NANOS) {
+                    continue;
+                }
+                final double throughput = (downloaded.get() - sampleBytes) * 1e9 / (now - sampleTime);
+                sampleTime = now;
+                sampleBytes = downloaded.get();
+                drop.sample(throughput);
+                final int target = targetWorkers.get();
+                if (growing) {
+                    if (throughput > bestThroughput * GROWTH_THRESHOLD) {
+                        bestThroughput = throughput;
+                        if (target < getMaxWorkers() && nextSegment.get() + target < segmentCount) {
+                            Log.d(TAG, "throughput " + (long) throughput + " B/s, using " + (target + 1) + " connections");
+                            targetWorkers.set(target + 1);
+                            startWorker();
+                        }
+                    } else {
+                        Log.d(TAG, "throughput " + (long) throughput + " B/s, settling on " + Math.max(1, target - 1) + " connections");
+                        targetWorkers.set(Math.max(1, target - 1));
+                        growing = false;
+                    }
+                } else if (throughput < bestThroughput / 2) {
+                    // network conditions changed, so probe for a better connection count again
+                    bestThroughput = throughput;
+                    growing = true;
+                }
+            }
+
+            final IOException e = failure.get();
+            if (e != null) {
+                throw e;
+            }
+            if (downloaded.get() != contentLength) {
+                throw new IOException("downloaded " + downloaded.get() + " of " + contentLength + " bytes");
+            }
+        } finally {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {}
+            try {
+                // keep whatever completed before a failure for the next attempt
+                journal.sync(channel);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    private void startWorker() {
+        workers.incrementAndGet();
+        executor.execute(() -> {
+            final TransferBuffer buffer = new TransferBuffer();
+            try {
+                while (failure.get() == null) {
+                    final int current = workers.get();
+                    if (current > targetWorkers.get() && workers.compareAndSet(current, current - 1)) {
+                        // retired, so another worker is still running
+                        return;
+                    }
+                    final int segment = nextSegment.getAndIncrement();
+                    if (segment >= segmentCount) {
+                        break;
+                    }
+                    if (journal.isCompleted(segment)) {
+                        continue;
+                    }
+                    fetchSegmentWithRetry(segment, buffer);
+                }
+            } catch (IOException e) {
+                fail(e);
+            } catch (RuntimeException e) {
+                fail(new IOException(e));
+            }
+            workers.decrementAndGet();
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        });
+    }
+
+    private void fail(final IOException e) {
+        if (failure.compareAndSet(null, e)) {
+            // unblock the reads of the other workers instead of waiting for them to time out
+            for (final Fetch fetch : fetches) {
+                fetch.connection.disconnect();
+            }
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    // Disconnects connections that fell below the throughput watermark, which makes their
+    // workers reconnect well before the read timeout would.
+    private void checkStalls(final long now) {
+        for (final Fetch fetch : fetches) {
+            final long progress = segmentProgress.get(fetch.segment);
+            if (fetch.windowProgress == -1) {
+                fetch.windowStart = now;
+                fetch.windowProgress = progress;
+            } else if (now - fetch.windowStart >= STALL_WINDOW_NANOS) {
+                if (progress - fetch.windowProgress < STALL_MIN_BYTES) {
+                    Log.d(TAG, "segment " + fetch.segment + " stalled at " + progress + " bytes");
+                    fetch.connection.disconnect();
+                }
+                fetch.windowStart = now;
+                fetch.windowProgress = progress;
+            }
+        }
+    }
+
+    // Follows the throughput per connection from the server in use, failing over once it has
+    // dropped well below the best it delivered. Only used by the controller.
+    private class ThroughputDrop {
+        private int failoversSeen;
+        private double bestPerConnection;
+        private int lowSamples;
+        // set once there's nowhere left to go for this run
+        private boolean exhausted;
+
+        void sample(final double throughput) {
+            if (failovers.get() != failoversSeen) {
+                // a new server, which starts over
+                failoversSeen = failovers.get();
+                bestPerConnection = 0;
+                lowSamples = 0;
+            }
+            final int connections = fetches.size();
+            if (exhausted || connections == 0) {
+                return;
+            }
+            final double perConnection = throughput / connections;
+            if (perConnection > bestPerConnection) {
+                bestPerConnection = perConnection;
+                lowSamples = 0;
+            } else if (perConnection < bestPerConnection * DROP_FRACTION) {
+                lowSamples++;
+            } else {
+                lowSamples = 0;
+            }
+            if (lowSamples < DROP_SAMPLES) {
+                return;
+            }
+            final String url = fetches.iterator().next().connection.getURL().toString();
+            Log.d(TAG, "throughput per connection dropped to " + (long) perConnection + " B/s from "
+                    + (long) bestPerConnection + " B/s");
+            if (!factory.onFailure(url)) {
+                exhausted = true;
+                return;
+            }
+            failovers.incrementAndGet();
+            // their workers continue each segment from the next server at the offset it reached
+            for (final Fetch fetch : fetches) {
+                if (fetch.connection.getURL().toString().equals(url)) {
+                    fetch.connection.disconnect();
+                }
+            }
+        }
+    }
+
+    static long getBackoffMillis(final int failures) {
+        final long max = Math.min(BACKOFF_MAX_MILLIS, BACKOFF_BASE_MILLIS << Math.min(failures - 1, 16));
+        // half fixed and half random so workers failing together don't reconnect together
+        return max / 2 + ThreadLocalRandom.current().nextLong(max / 2 + 1);
+    }
+
+    private void fetchSegmentWithRetry(final int segment, final TransferBuffer buffer) throws IOException {
+        int failures = 0;
+        while (true) {
+            final long before = segmentProgress.get(segment);
+            HttpURLConnection connection = null;
+            try {
+                if (before < segmentLength(segment)) {
+                    connection = factory.open();
+                }
+                fetchSegment(segment, buffer, connection);
+                return;
+            } catch (IOException e) {
+                if (failure.get() != null) {
+                    throw e;
+                }
+                if (connection != null && factory.onFailure(connection.getURL().toString())) {
+                    // another server may have what this one refused and isn't owed a backoff
+                    Log.d(TAG, "retrying segment " + segment + " elsewhere after: " + e);
+                    failovers.incrementAndGet();
+                    reconnects.incrementAndGet();
+                    continue;
+                }
+                if (e instanceof RefusedException) {
+                    throw e;
+                }
+                if (segmentProgress.get(segment) != before) {
+                    failures = 0;
+                }
+                if (++failures > reconnectBudget) {
+                    throw e;
+                }
+                final long delay = getBackoffMillis(failures);
+                Log.d(TAG, "reconnecting segment " + segment + " in " + delay + " ms after: " + e);
+                reconnects.incrementAndGet();
+                final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+                synchronized (lock) {
+                    long remaining;
+                    while (failure.get() == null && (remaining = deadline - System.nanoTime()) > 0) {
+                        try {
+                            TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                        } catch (InterruptedException interrupted) {
+                            throw new InterruptedIOException("reconnect interrupted");
+                        }
+                    }
+                }
+                if (failure.get() != null) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Array for one worker that the response is read into straight from its stream, growing while
+    // reads keep filling it so a fast connection needs few large writes and shrinking when filling
+    // it stalls so progress is still recorded often. A channel over the stream would copy through
+    // its own small array first.
+    private static class TransferBuffer {
+        private static final int MIN_SIZE = 64 * 1024;
+        private static final int MAX_SIZE = 1024 * 1024;
+        private static final long SLOW_FILL_NANOS = 1000L * 1000 * 1000;
+
+        private byte[] array = new byte[MIN_SIZE];
+
+        byte[] get() {
+            return array;
+        }
+
+        void adapt(final boolean filled, final long fillNanos, final int maxSize) {
+            final int size = array.length;
+            if (filled && fillNanos < SLOW_FILL_NANOS && size < Math.min(MAX_SIZE, maxSize)) {
+                array = new byte[size * 2];
+            } else if ((fillNanos >= SLOW_FILL_NANOS || size > maxSize) && size > MIN_SIZE) {
+                array = new byte[size / 2];
+            }
+        }
+    }
+
+    // The connection is null if the segment only has to be recorded as completed.
+    private void fetchSegment(final int segment, final TransferBuffer transferBuffer,
+            final HttpURLConnection connection) throws IOException {
+        final long offset = segmentStart(segment);
+        final long length = segmentLength(segment);
+        CRC32 crc = partialCrc[segment];
+        if (crc == null) {
+            crc = new CRC32();
+            partialCrc[segment] = crc;
+        }
+        // bytes kept from an earlier fetch that was cut short aren't requested again
+        long written = segmentProgress.get(segment);
+        if (written < length) {
+            final Fetch fetch = new Fetch(connection, segment);
+            fetches.add(fetch);
+            boolean complete = false;
+            try {
+                connection.setRequestProperty("Range", "bytes=" + (offset + written) + "-" + (offset + length - 1));
+                final int responseCode = connection.getResponseCode();
+                if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                    final String message = "unexpected response code " + responseCode + " for range request";
+                    if (responseCode >= 500 || responseCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+                            || responseCode == 429) {
+                        throw new IOException(message);
+                    }
+                    throw new RefusedException(message);
+                }
+                try (final InputStream source = connection.getInputStream()) {
+                    boolean eof = false;
+                    while (written < length && !eof) {
+                        final byte[] array = transferBuffer.get();
+                        final int limit = (int) Math.min(array.length, length - written);
+                        int bytesRead = 0;
+                        final long fillStart = System.nanoTime();
+                        while (bytesRead < limit) {
+                            final int count = source.read(array, bytesRead, limit - bytesRead);
+                            if (count == -1) {
+                                eof = true;
+                                break;
+                            }
+                            bytesRead += count;
+                            if (failure.get() != null) {
+                                return;
+                            }
+                        }
+                        transferBuffer.adapt(limit == array.length && bytesRead == limit,
+                                System.nanoTime() - fillStart, maxBufferSize);
+                        final ByteBuffer buffer = ByteBuffer.wrap(array, 0, bytesRead);
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer, offset + written + buffer.position());
+                        }
+                        // only counted once written so a later fetch can continue from here
+                        crc.update(array, 0, bytesRead);
+                        written += bytesRead;
+                        segmentProgress.addAndGet(segment, bytesRead);
+                        downloaded.addAndGet(bytesRead);
+                    }
+                    if (written != length) {
+                        throw new IOException("segment at " + offset + " truncated after " + written + " of " + length + " bytes");
+                    }
+                    complete = true;
+                }
+            } finally {
+                fetches.remove(fetch);
+                // the next segment can reuse the connection once this response is done
+                if (complete) {
+                    Connections.release(connection);
+                } else {
+                    connection.disconnect();
+                }
+            }
+        }
+        journal.complete(segment, (int) crc.getValue(), channel);
+        partialCrc[segment] = null;
+    }
+}
@@ -0,0 +1,234 @@
+package app.seamlessupdate.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Timings and counters for one update attempt. Finished attempts are kept as one line each in a
+// bounded history on disk, oldest first, and printed by dumpsys.
+class UpdateMetrics {
+    private static final String TAG = "UpdateMetrics";
+    private static final int MAX_ATTEMPTS = 32;
+    private static final int MAX_THROUGHPUT_SAMPLES = 16;
+    private static final long THROUGHPUT_SAMPLE_MILLIS = 10000;
+    static final String PHASE_DOWNLOADING = "downloading";
+    static final String PHASE_VERIFYING = "verifying";
+    static final String PHASE_FINALIZING = "finalizing";
+    private static final String[] PHASES = { PHASE_DOWNLOADING, PHASE_VERIFYING, PHASE_FINALIZING };
+
+    private final File file;
+    private final String source;
+    private final long startTime = System.currentTimeMillis();
+    private final long startElapsed = elapsedMillis();
+    private String mode = "check";
+    private String target;
+    private String packageName;
+    private long connectMillis = -1;
+    private long ttfbMillis = -1;
+    private long contentLength = -1;
+    private long resumedBytes;
+    private long fetchedBytes;
+    private long reusedBytes;
+    private int reconnects;
+    private int requests;
+    private int connections;
+    private int resumedSessions;
+    private final List<Long> throughputSamples = new ArrayList<>();
+    private long sampleElapsed = -1;
+    private long sampleBytes;
+    private long verifyMillis = -1;
+    private long throttledMillis;
+    private int maxPacingLevel;
+    private final long[] phaseMillis = new long[PHASES.length];
+    private int phase = -1;
+    private long phaseElapsed;
+    private String result;
+
+    UpdateMetrics(final File file, final String source) {
+        this.file = file;
+        this.source = source;
+    }
+
+    private static long elapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    synchronized void setConnectTiming(final long connectMillis, final long ttfbMillis) {
+        this.connectMillis = connectMillis;
+        this.ttfbMillis = ttfbMillis;
+    }
+
+    synchronized void setTarget(final String target) {
+        this.target = target;
+    }
+
+    synchronized void setPackage(final String packageName, final long contentLength) {
+        this.packageName = packageName;
+        this.contentLength = contentLength;
+    }
+
+    // download, streaming or overlap once a package is being fetched
+    synchronized void setMode(final String mode) {
+        this.mode = mode;
+    }
+
+    synchronized void setResumed(final long resumedBytes) {
+        this.resumedBytes = resumedBytes;
+    }
+
+    // bytes copied from a stale package instead of fetched
+    synchronized void setReused(final long reusedBytes) {
+        this.reusedBytes = reusedBytes;
+    }
+
+    // called with the bytes fetched so far in this attempt, sampling the throughput periodically
+    synchronized void onDownloadProgress(final long fetchedBytes) {
+        final long now = elapsedMillis();
+        this.fetchedBytes = fetchedBytes;
+        if (sampleElapsed == -1) {
+            sampleElapsed = now;
+            sampleBytes = fetchedBytes;
+        } else if (now - sampleElapsed >= THROUGHPUT_SAMPLE_MILLIS) {
+            if (throughputSamples.size() == MAX_THROUGHPUT_SAMPLES) {
+                throughputSamples.remove(0);
+            }
+            throughputSamples.add((fetchedBytes - sampleBytes) * 1000 / (now - sampleElapsed));
+            sampleElapsed = now;
+            sampleBytes = fetchedBytes;
+        }
+    }
+
+    // connections re-established within the attempt after dropping or stalling
+    synchronized void setReconnects(final int reconnects) {
+        this.reconnects = reconnects;
+    }
+
+    // requests not needing a new connection reused a kept-alive one
+    synchronized void setConnections(final int requests, final int connections, final int resumedSessions) {
+        this.requests = requests;
+        this.connections = connections;
+        this.resumedSessions = resumedSessions;
+    }
+
+    synchronized void setVerifyMillis(final long verifyMillis) {
+        this.verifyMillis = verifyMillis;
+    }
+
+    // time spent paced down for the device condition and the strictest pacing level reached
+    synchronized void setPacing(final long throttledMillis, final int maxPacingLevel) {
+        this.throttledMillis = throttledMillis;
+        this.maxPacingLevel = maxPacingLevel;
+    }
+
+    // tracks how long update_engine spends in each phase from its status updates, with null for
+    // any other status
+    synchronized void onPhase(final String name) {
+        final long now = elapsedMillis();
+        if (phase != -1) {
+            phaseMillis[phase] += now - phaseElapsed;
+        }
+        phase = -1;
+        for (int i = 0; i < PHASES.length; i++) {
+            if (PHASES[i].equals(name)) {
+                phase = i;
+                phaseElapsed = now;
+            }
+        }
+    }
+
+    // keeps the first result, which is the most specific one
+    synchronized void setResult(final String result) {
+        if (this.result == null) {
+            this.result = result;
+        }
+    }
+
+    synchronized void save() {
+        // close the current phase
+        onPhase(null);
+        final StringBuilder line = new StringBuilder();
+        line.append(String.format("%tF %<tT", startTime));
+        line.append(" source=").append(source);
+        line.append(" target=").append(target);
+        line.append(" mode=").append(mode);
+        line.append(" package=").append(packageName);
+        line.append(" duration=").append(elapsedMillis() - startElapsed).append("ms");
+        line.append(" connect=").append(connectMillis).append("ms");
+        line.append(" ttfb=").append(ttfbMillis).append("ms");
+        line.append(" size=").append(contentLength);
+        line.append(" resumed=").append(resumedBytes);
+        line.append(" fetched=").append(fetchedBytes);
+        line.append(" reused=").append(reusedBytes);
+        line.append(" reconnects=").append(reconnects);
+        line.append(" requests=").append(requests);
+        line.append(" connections=").append(connections);
+        line.append(" resumed_sessions=").append(resumedSessions);
+        line.append(" throughput=").append(throughputSamples.toString().replace(" ", ""));
+        line.append(" verify=").append(verifyMillis).append("ms");
+        line.append(" throttled=").append(throttledMillis).append("ms");
+        line.append(" pacing=").append(maxPacingLevel);
+        for (int i = 0; i < PHASES.length; i++) {
+            line.append(' ').append(PHASES[i]).append('=').append(phaseMillis[i]).append("ms");
+        }
+        // the result is last since a failure message can contain spaces
+        line.append(" result=").append(result == null ? "unknown" : result.replace('\n', ' '));
+
+        final List<String> lines = read(file);
+        lines.add(line.toString());
+        final List<String> kept = lines.subList(Math.max(0, lines.size() - MAX_ATTEMPTS), lines.size());
+        // replaced with a rename so a crash leaves either the old or the new history
+        final File temporary = new File(file.getPath() + ".new");
+        try (final FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            final ByteBuffer buffer = ByteBuffer.wrap((String.join("\n", kept) + "\n").getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            Log.e(TAG, "failed to save metrics", e);
+            temporary.delete();
+            return;
+        }
+        try {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Log.e(TAG, "failed to save metrics", e);
+        }
+    }
+
+    private static List<String> read(final File file) {
+        final List<String> lines = new ArrayList<>();
+        try {
+            for (final String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                if (!line.isEmpty()) {
+                    lines.add(line);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // nothing recorded yet
+        } catch (IOException e) {
+            Log.e(TAG, "failed to read metrics", e);
+        }
+        return lines;
+    }
+
+    static void dump(final File file, final PrintWriter writer) {
+        final List<String> lines = read(file);
+        writer.println("update attempts (" + lines.size() + " of at most " + MAX_ATTEMPTS + "):");
+        for (final String line : lines) {
+            writer.println("  " + line);
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package app.seamlessupdate.client;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Runs update attempts one at a time on a dedicated thread. Requests made while an attempt is
+// running are coalesced into it rather than queued behind it. Each attempt moves through the
+// phases of Updater.Phase and is cancelled if a phase runs past its time limit.
+class UpdateOrchestrator {
+    private static final String TAG = "UpdateOrchestrator";
+
+    interface Attempt {
+        void run(Control control);
+    }
+
+    // Work that can be paused in place rather than by interrupting the attempt's thread. Both are
+    // called holding the lock of the Control, which the work can take to order its own changes
+    // against them.
+    interface Suspendable {
+        // returns whether the work was suspended
+        boolean suspend();
+        void resume();
+    }
+
+    // Keeps the device awake while an attempt has work running, which excludes the time it's
+    // paused with nothing left running. Calls alternate, starting with true for each attempt.
+    interface Awake {
+        void setAwake(boolean awake);
+    }
+
+    // Cooperative cancellation, pausing and phase time limits for one attempt. Cancelling
+    // interrupts the attempt's thread, which ends blocking network, file and update_engine waits,
+    // and the work checks for it between steps. Pausing interrupts the transfer of a download the
+    // same way and the work then waits in awaitResume, while an installation is suspended in
+    // place. Elsewhere in the check and the download, the work carries on to the next awaitResume,
+    // since an interrupt would close the files it's using.
+    class Control {
+        private Thread thread;
+        private ScheduledFuture<?> timeout;
+        private volatile String cancelReason;
+        private Updater.Phase phase;
+        private Suspendable suspendable;
+        private boolean paused;
+        private boolean suspended;
+        private boolean interrupted;
+        private boolean interruptible;
+        private int backgroundWork;
+        private boolean awake;
+        private volatile boolean installRequested;
+        private volatile boolean userInitiated;
+
+        void enterPhase(final Updater.Phase phase) throws InterruptedIOException {
+            checkCancelled();
+            Log.d(TAG, "entering " + phase + " phase");
+            synchronized (this) {
+                this.phase = phase;
+                scheduleTimeout();
+            }
+        }
+
+        private synchronized void scheduleTimeout() {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            final Updater.Phase current = phase;
+            final long limit = paused ? 0 : getTimeLimitMillis(current);
+            timeout = limit == 0 ? null : timer.schedule(
+                    () -> cancel("timed out in " + current + " phase"), limit, TimeUnit.MILLISECONDS);
+        }
+
+        // Raised by each request for the attempt, including those coalesced into it once it's
+        // running, so it carries on to install what it would otherwise leave to the install job.
+        private void request(final boolean install, final boolean userInitiated) {
+            if (install) {
+                installRequested = true;
+            }
+            if (userInitiated) {
+                this.userInitiated = true;
+            }
+        }
+
+        boolean isInstallRequested() {
+            return installRequested;
+        }
+
+        boolean isUserInitiated() {
+            return userInitiated;
+        }
+
+        void checkCancelled() throws InterruptedIOException {
+            final String reason = cancelReason;
+            if (reason != null) {
+                throw new InterruptedIOException(reason);
+            }
+        }
+
+        boolean isCancelled() {
+            return cancelReason != null;
+        }
+
+        synchronized boolean isPaused() {
+            return paused;
+        }
+
+        synchronized void cancel(final String reason) {
+            if (cancelReason != null) {
+                return;
+            }
+            Log.d(TAG, "cancelling: " + reason);
+            cancelReason = reason;
+            if (thread != null) {
+                thread.interrupt();
+            }
+            notifyAll();
+        }
+
+        // Only a check, a download or a suspendable installation can be paused. The phase time
+        // limit doesn't run while paused and starts over once resumed.
+        synchronized boolean pause() {
+            if (paused || cancelReason != null || thread == null) {
+                return false;
+            }
+            if (suspendable != null) {
+                if (!suspendable.suspend()) {
+                    return false;
+                }
+                suspended = true;
+            } else if (phase == Updater.Phase.CHECK || phase == Updater.Phase.DOWNLOAD) {
+                if (interruptible) {
+                    interrupted = true;
+                    thread.interrupt();
+                }
+            } else {
+                return false;
+            }
+            Log.d(TAG, "pausing in " + phase + " phase");
+            paused = true;
+            scheduleTimeout();
+            updateAwake();
+            return true;
+        }
+
+        synchronized boolean resume() {
+            if (!paused) {
+                return false;
+            }
+            Log.d(TAG, "resuming in " + phase + " phase");
+            paused = false;
+            if (suspended) {
+                suspended = false;
+                suspendable.resume();
+            }
+            scheduleTimeout();
+            updateAwake();
+            notifyAll();
+            return true;
+        }
+
+        // Marks work running on another thread of the attempt, which a pause doesn't stop, such
+        // as the download feeding an installation.
+        synchronized void beginBackgroundWork() {
+            backgroundWork++;
+            updateAwake();
+        }
+
+        synchronized void endBackgroundWork() {
+            backgroundWork--;
+            updateAwake();
+        }
+
+        private synchronized void updateAwake() {
+            final boolean needed = thread != null && (!paused || backgroundWork > 0);
+            if (needed != awake) {
+                awake = needed;
+                awakeHolder.setAwake(needed);
+            }
+        }
+
+        // Blocks while paused by interrupting the work, which can then carry on from where it
+        // stopped. Throws if the attempt is cancelled meanwhile.
+        void awaitResume() throws InterruptedIOException {
+            synchronized (this) {
+                while (paused && !suspended && cancelReason == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {}
+                }
+                if (interrupted) {
+                    interrupted = false;
+                    // the interrupt that stopped the paused work may not have been consumed
+                    Thread.interrupted();
+                }
+            }
+            checkCancelled();
+        }
+
+        // Marks the transfer, which a pause stops by interrupting it. It has to be cleared before
+        // using files again, and awaitResume consumes an interrupt left by a pause.
+        synchronized void setInterruptible(final boolean interruptible) {
+            this.interruptible = interruptible;
+        }
+
+        // Registers the work to suspend while paused, or null once it's done.
+        synchronized void setSuspendable(final Suspendable suspendable) {
+            this.suspendable = suspendable;
+            if (suspendable == null) {
+                if (suspended) {
+                    // nothing is left to resume
+                    suspended = false;
+                    paused = false;
+                }
+            } else if (paused && !suspended && suspendable.suspend()) {
+                suspended = true;
+            }
+        }
+
+        private synchronized void begin() {
+            thread = Thread.currentThread();
+            updateAwake();
+        }
+
+        private synchronized void end() {
+            thread = null;
+            updateAwake();
+            if (timeout != null) {
+                timeout.cancel(false);
+                timeout = null;
+            }
+            // a cancel racing with the end of the attempt must not leak into the next one
+            Thread.interrupted();
+        }
+    }
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, TAG));
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, TAG + "Timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Awake awakeHolder;
+    private Control current;
+
+    UpdateOrchestrator() {
+        this(awake -> {});
+    }
+
+    UpdateOrchestrator(final Awake awakeHolder) {
+        this.awakeHolder = awakeHolder;
+    }
+
+    static long getTimeLimitMillis(final Updater.Phase phase) {
+        switch (phase) {
+            case CHECK:
+                return TimeUnit.MINUTES.toMillis(10);
+            case DOWNLOAD:
+                return TimeUnit.HOURS.toMillis(12);
+            case VERIFY:
+                return TimeUnit.HOURS.toMillis(1);
+            case APPLY:
+                return TimeUnit.HOURS.toMillis(4);
+            default:
+                return 0;
+        }
+    }
+
+    synchronized boolean submit(final Attempt attempt, final Runnable onFinished) {
+        return submit(attempt, false, false, onFinished);
+    }
+
+    // Returns false if the request was coalesced into the attempt that is already running, in
+    // which case onFinished is only run for that attempt and the request's install and
+    // userInitiated are raised on its control.
+    synchronized boolean submit(final Attempt attempt, final boolean install,
+            final boolean userInitiated, final Runnable onFinished) {
+        if (current != null) {
+            current.request(install, userInitiated);
+            return false;
+        }
+        final Control control = new Control();
+        control.request(install, userInitiated);
+        current = control;
+        executor.execute(() -> {
+            control.begin();
+            try {
+                attempt.run(control);
+            } finally {
+                control.end();
+                synchronized (this) {
+                    current = null;
+                }
+                onFinished.run();
+            }
+        });
+        return true;
+    }
+
+    synchronized boolean isRunning() {
+        return current != null;
+    }
+
+    synchronized void cancel(final String reason) {
+        if (current != null) {
+            current.cancel(reason);
+        }
+    }
+
+    synchronized boolean pause() {
+        return current != null && current.pause();
+    }
+
+    synchronized boolean resume() {
+        return current != null && current.resume();
+    }
+
+    void shutdown() {
+        cancel("shutting down");
+        executor.shutdown();
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,135 @@
+package app.seamlessupdate.client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+// Picks the sequence of packages with the fewest bytes to download for getting from the installed
+// build to the target build, based on an index of the packages available on the server. Each line
+// of the index is either "<source> <target> <target build date> <size>" for an incremental package
+// or "full <target> <target build date> <size>" for a full package.
+//
+// A/B updates apply against the running slot, so only the first step of a chain can be installed
+// before rebooting. Later steps are planned again by the checks after each reboot.
+class UpdatePlanner {
+    private static final String FULL = "full";
+
+    static class Step {
+        // null for a full package
+        final String sourceIncremental;
+        final String targetIncremental;
+        final long targetBuildDate;
+        final long size;
+
+        Step(final String sourceIncremental, final String targetIncremental, final long targetBuildDate, final long size) {
+            this.sourceIncremental = sourceIncremental;
+            this.targetIncremental = targetIncremental;
+            this.targetBuildDate = targetBuildDate;
+            this.size = size;
+        }
+
+        boolean isFull() {
+            return sourceIncremental == null;
+        }
+
+        @Override
+        public String toString() {
+            return (isFull() ? FULL : sourceIncremental) + " -> " + targetIncremental + " (" + size + " bytes)";
+        }
+    }
+
+    private static class Path implements Comparable<Path> {
+        final String incremental;
+        final long buildDate;
+        final long size;
+
+        Path(final String incremental, final long buildDate, final long size) {
+            this.incremental = incremental;
+            this.buildDate = buildDate;
+            this.size = size;
+        }
+
+        @Override
+        public int compareTo(final Path other) {
+            return Long.compare(size, other.size);
+        }
+    }
+
+    private final Map<String, List<Step>> incrementals = new HashMap<>();
+    private final Map<String, Step> fulls = new HashMap<>();
+
+    UpdatePlanner(final BufferedReader index) throws IOException {
+        for (String line; (line = index.readLine()) != null; ) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            final String[] fields = line.split(" ");
+            if (fields.length != 4) {
+                throw new IOException("malformed update index line: " + line);
+            }
+            final Step step;
+            try {
+                step = new Step(FULL.equals(fields[0]) ? null : fields[0], fields[1],
+                        Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+            } catch (NumberFormatException e) {
+                throw new IOException("malformed update index line: " + line, e);
+            }
+            if (step.isFull()) {
+                fulls.put(step.targetIncremental, step);
+            } else {
+                incrementals.computeIfAbsent(step.sourceIncremental, k -> new ArrayList<>()).add(step);
+            }
+        }
+    }
+
+    // Returns an empty plan if the index has no package leading to the target.
+    List<Step> plan(final String sourceIncremental, final long sourceBuildDate,
+            final String targetIncremental, final long targetBuildDate) {
+        final Map<String, Long> best = new HashMap<>();
+        final Map<String, Step> via = new HashMap<>();
+        final PriorityQueue<Path> queue = new PriorityQueue<>();
+        best.put(sourceIncremental, 0L);
+        queue.add(new Path(sourceIncremental, sourceBuildDate, 0));
+        while (!queue.isEmpty()) {
+            final Path path = queue.poll();
+            if (path.size > best.get(path.incremental) || path.incremental.equals(targetIncremental)) {
+                continue;
+            }
+            for (final Step step : incrementals.getOrDefault(path.incremental, Collections.emptyList())) {
+                // never step backwards or past the release being updated to
+                if (step.targetBuildDate <= path.buildDate || step.targetBuildDate > targetBuildDate) {
+                    continue;
+                }
+                final long size = path.size + step.size;
+                final Long known = best.get(step.targetIncremental);
+                if (known == null || size < known) {
+                    best.put(step.targetIncremental, size);
+                    via.put(step.targetIncremental, step);
+                    queue.add(new Path(step.targetIncremental, step.targetBuildDate, size));
+                }
+            }
+        }
+
+        final Step full = fulls.get(targetIncremental);
+        final Long chainSize = best.get(targetIncremental);
+        if (chainSize == null || (full != null && full.targetBuildDate == targetBuildDate && full.size <= chainSize)) {
+            if (full == null || full.targetBuildDate != targetBuildDate) {
+                return Collections.emptyList();
+            }
+            return Collections.singletonList(full);
+        }
+        final List<Step> steps = new ArrayList<>();
+        for (String incremental = targetIncremental; !incremental.equals(sourceIncremental); ) {
+            final Step step = via.get(incremental);
+            steps.add(step);
+            incremental = step.sourceIncremental;
+        }
+        Collections.reverse(steps);
+        return steps;
+    }
+}
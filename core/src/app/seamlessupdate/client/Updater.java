@@ -0,0 +1,960 @@
+package app.seamlessupdate.client;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+// Checks for an update and downloads, verifies and installs it. The platform is only reached
+// through the interfaces below, so this runs on a plain JVM as well as in the app.
+class Updater {
+    private static final String TAG = "Updater";
+
+    static final String PROPERTY_DEVICE = "ro.product.device";
+    static final String PROPERTY_INCREMENTAL = "ro.build.version.incremental";
+    static final String PROPERTY_FINGERPRINT = "ro.build.fingerprint";
+    static final String PROPERTY_BUILD_DATE = "ro.build.date.utc";
+    // off by default, since update_engine only takes the payload server's URL on development builds
+    static final String PROPERTY_OVERLAP_INSTALL = "sys.update.overlap_install";
+    static final String PROPERTY_RECONNECT_BUDGET = "sys.update.reconnect_budget";
+    static final String PROPERTY_SYNC_BYTES = "sys.update.sync_bytes";
+
+    static final String PREFERENCE_DOWNLOAD_FILE = "download_file";
+    static final String PREFERENCE_PACKAGE_BUILD_DATE = "package_build_date";
+    static final String PREFERENCE_PHASE = "update_phase";
+    static final String PREFERENCE_METADATA_PATH = "metadata_path";
+    static final String PREFERENCE_METADATA_ETAG = "metadata_etag";
+    static final String PREFERENCE_METADATA_LAST_MODIFIED = "metadata_last_modified";
+    static final String PREFERENCE_METADATA_NOT_MODIFIED = "metadata_not_modified";
+    static final String PREFERENCE_METADATA_MODIFIED = "metadata_modified";
+    // state for PollingPolicy
+    static final String PREFERENCE_EMPTY_CHECKS = "empty_checks";
+    static final String PREFERENCE_CHECK_HINT = "check_hint";
+    static final String PREFERENCE_RELEASES = "releases";
+    static final String PREFERENCE_PENDING_BYTES = "pending_bytes";
+    static final String PREFERENCE_MIRROR_HEALTH = "mirror_health";
+    static final String PREFERENCE_VERIFIED_PACKAGE = "verified_package";
+
+    enum Phase {
+        // READY is a verified package waiting for the install job
+        CHECK, DOWNLOAD, VERIFY, READY, APPLY, AWAIT_REBOOT
+    }
+
+    enum Result {
+        // nothing to install, either up-to-date or after a failed installation
+        NONE,
+        // an update is waiting for the install job
+        READY,
+        // installed and waiting for a reboot
+        INSTALLED
+    }
+
+    // what became of a payload application update_engine carried on with after the process that
+    // started it was killed
+    enum Session {
+        // update_engine isn't applying a payload
+        NONE,
+        SUCCEEDED,
+        FAILED
+    }
+
+    // fetches from the mirrors of the update server
+    interface Transport {
+        // base URLs of the mirrors, which serve the same paths
+        List<String> getMirrors();
+
+        HttpURLConnection open(String url) throws IOException;
+
+        // extra payload properties update_engine needs to fetch from the server itself
+        List<String> getPayloadHeaders();
+    }
+
+    interface PropertySource {
+        String get(String key, String def);
+
+        long getLong(String key, long def);
+
+        boolean getBoolean(String key, boolean def);
+    }
+
+    interface PreferencesStore {
+        String getString(String key, String defValue);
+
+        long getLong(String key, long defValue);
+
+        // a null value removes the key
+        void putString(String key, String value);
+
+        void putLong(String key, long value);
+    }
+
+    interface PayloadApplier {
+        // Blocks until the payload has been applied, returning whether it succeeded. Registering
+        // with the control lets the installation be paused.
+        boolean applyPayload(String url, long offset, long size, String[] headerKeyValuePairs,
+                UpdateOrchestrator.Control control);
+
+        // Blocks until a payload application started by an earlier process has finished, which
+        // is pausable the same way.
+        Session reattach(UpdateOrchestrator.Control control);
+    }
+
+    interface PackageVerification {
+        void verifyPackage(File file, ProgressListener listener) throws IOException, GeneralSecurityException;
+    }
+
+    interface Allocator {
+        // reserves space for the whole file without changing what's already written
+        void allocate(FileDescriptor fd, long length) throws IOException;
+    }
+
+    interface ProgressListener {
+        void onProgress(int progress);
+    }
+
+    interface Listener {
+        void onUpToDate(String channel);
+
+        // the rest of the package is about to be downloaded into file
+        void onDownloadStart(File file, long downloaded, long contentLength);
+
+        void onDownloadProgress(long downloaded, long contentLength);
+
+        void onVerifyProgress(int progress);
+    }
+
+    private final File packageFile;
+    private final File journalFile;
+    private final File staleFile;
+    private final File careMapFile;
+    private final VerificationCache verificationCache;
+    private final Transport transport;
+    private final Mirrors mirrors;
+    private final PropertySource properties;
+    private final PreferencesStore preferences;
+    private final PayloadApplier applier;
+    private final PackageVerification verification;
+    private final Allocator allocator;
+    private final Listener listener;
+    private final UpdateMetrics metrics;
+    private final Pacer pacer;
+    private UpdateOrchestrator.Control control;
+    private boolean install;
+
+    Updater(final File directory, final Transport transport, final PropertySource properties,
+            final PreferencesStore preferences, final PayloadApplier applier,
+            final PackageVerification verification, final Allocator allocator, final Listener listener,
+            final UpdateMetrics metrics, final Pacer pacer) {
+        this.packageFile = new File(directory, "update.zip");
+        this.journalFile = new File(directory, "update.zip.journal");
+        this.staleFile = new File(directory, "update.zip.stale");
+        this.careMapFile = new File(directory, "care_map.pb");
+        this.verificationCache = new VerificationCache(packageFile, preferences);
+        this.transport = transport;
+        this.mirrors = new Mirrors(transport, preferences);
+        this.properties = properties;
+        this.preferences = preferences;
+        this.applier = applier;
+        this.verification = verification;
+        this.allocator = allocator;
+        this.listener = listener;
+        this.metrics = metrics;
+        this.pacer = pacer;
+    }
+
+    private void incrementCounter(final String key) {
+        preferences.putLong(key, preferences.getLong(key, 0) + 1);
+    }
+
+    private void recordRelease(final long buildDate) {
+        if (buildDate == 0) {
+            return;
+        }
+        final String releases = preferences.getString(PREFERENCE_RELEASES, null);
+        final String updated = PollingPolicy.addRelease(releases, buildDate);
+        if (!updated.equals(releases)) {
+            preferences.putString(PREFERENCE_RELEASES, updated);
+        }
+    }
+
+    // requests path from the mirror in use
+    private HttpURLConnection open(final String path) throws IOException {
+        return transport.open(mirrors.getCurrent() + path);
+    }
+
+    private static void checkResponseCode(final HttpURLConnection connection, final int expected) throws IOException {
+        final int responseCode = connection.getResponseCode();
+        if (responseCode != expected) {
+            throw new IOException("unexpected response code " + responseCode + " for " + connection.getURL());
+        }
+    }
+
+    // Checks that the package exists without fetching it. The caller releases the connection.
+    private HttpURLConnection openPackage(final String path) throws IOException {
+        final HttpURLConnection connection = open(path);
+        try {
+            connection.setRequestMethod("HEAD");
+            checkResponseCode(connection, HttpURLConnection.HTTP_OK);
+        } catch (IOException e) {
+            Connections.release(connection);
+            throw e;
+        }
+        return connection;
+    }
+
+    private List<UpdatePlanner.Step> fetchPlan(final String device, final String sourceIncremental,
+            final long sourceBuildDate, final String targetIncremental, final long targetBuildDate) {
+        HttpURLConnection connection = null;
+        try {
+            connection = open(device + "-index");
+            checkResponseCode(connection, HttpURLConnection.HTTP_OK);
+            try (final BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
+                return new UpdatePlanner(reader).plan(sourceIncremental, sourceBuildDate, targetIncremental, targetBuildDate);
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "update index unavailable", e);
+            return Collections.emptyList();
+        } finally {
+            if (connection != null) {
+                Connections.release(connection);
+            }
+        }
+    }
+
+    void deletePackage() {
+        verificationCache.clear();
+        packageFile.delete();
+        journalFile.delete();
+        staleFile.delete();
+    }
+
+    // Keeps the package of an earlier download for the blocks it shares with the next one.
+    private void keepStalePackage() {
+        verificationCache.clear();
+        journalFile.delete();
+        if (packageFile.exists() && !packageFile.renameTo(staleFile)) {
+            packageFile.delete();
+        }
+    }
+
+    // Copies what the stale package shares with the new one and completes the chunks that are
+    // mostly covered by it. The segmented download fetches whatever is left.
+    private void reuseStalePackage(final String path, final DownloadJournal journal) {
+        try {
+            final BlockReuse reuse = new BlockReuse(() -> open(path + BlockReuse.BLOCK_MAP_SUFFIX),
+                    () -> open(path), staleFile, packageFile, journal, control);
+            if (reuse.run()) {
+                metrics.setReused(reuse.getReusedBytes());
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            // whatever was completed is kept in the journal either way
+            Log.d(TAG, "unable to reuse stale package", e);
+        } finally {
+            staleFile.delete();
+        }
+    }
+
+    private boolean applyUpdate(final String url, final long payloadOffset, final long payloadSize,
+            final String[] headerKeyValuePairs) throws InterruptedIOException {
+        enterPhase(Phase.APPLY);
+        final boolean success = applier.applyPayload(url, payloadOffset, payloadSize, headerKeyValuePairs,
+                control);
+        // the package is kept for trying again after a cancellation
+        control.checkCancelled();
+        metrics.setResult(success ? "success" : "payload application failed");
+        return success;
+    }
+
+    private static ZipEntry getEntry(final ZipFile zipFile, final String name) throws GeneralSecurityException {
+        final ZipEntry entry = zipFile.getEntry(name);
+        if (entry == null) {
+            throw new GeneralSecurityException("missing zip entry: " + name);
+        }
+        return entry;
+    }
+
+    // The verifier is null for a package verified by an earlier attempt.
+    private Result onDownloadFinished(final String path, final long targetBuildDate,
+            final PackageVerifier verifier) throws IOException, GeneralSecurityException {
+        try {
+            enterPhase(Phase.VERIFY);
+            listener.onVerifyProgress(0);
+            final long verifyStart = System.nanoTime();
+            if (verifier == null || verifier.finish()) {
+                listener.onVerifyProgress(100);
+            } else {
+                verification.verifyPackage(packageFile, (int progress) -> {
+                    Log.d(TAG, "verifyPackage: " + progress + "%");
+                    listener.onVerifyProgress(progress);
+                });
+            }
+            metrics.setVerifyMillis((System.nanoTime() - verifyStart) / 1000000);
+            if (verifier != null) {
+                verificationCache.record(path, targetBuildDate);
+            }
+
+            final long payloadOffset;
+            final String[] headers;
+            try (final ZipFile zipFile = new ZipFile(packageFile)) {
+                final ZipEntry metadataEntry = getEntry(zipFile, PackageMetadata.ENTRY_NAME);
+                final PackageMetadata metadata = PackageMetadata.parse(
+                        new BufferedReader(new InputStreamReader(zipFile.getInputStream(metadataEntry))));
+                metadata.check(targetBuildDate, properties);
+                final long[] payload = metadata.getPropertyFile("payload.bin");
+                payloadOffset = payload == null ? 0 : payload[0];
+
+                Files.deleteIfExists(careMapFile.toPath());
+                final ZipEntry careMapEntry = zipFile.getEntry("care_map.pb");
+                if (careMapEntry == null) {
+                    Log.w(TAG, "care_map.pb missing");
+                } else {
+                    Files.copy(zipFile.getInputStream(careMapEntry), careMapFile.toPath());
+                    careMapFile.setReadable(true, false);
+                }
+
+                final ZipEntry payloadProperties = getEntry(zipFile, "payload_properties.txt");
+                final BufferedReader propertiesReader = new BufferedReader(new InputStreamReader(zipFile.getInputStream(payloadProperties)));
+                headers = propertiesReader.lines().toArray(String[]::new);
+            }
+            packageFile.setReadable(true, false);
+            if (!isInstalling()) {
+                enterPhase(Phase.READY);
+                metrics.setResult("ready to install");
+                Log.d(TAG, "package verified, leaving the installation to the install job");
+                return Result.READY;
+            }
+            final boolean success = applyUpdate("file://" + packageFile, payloadOffset, 0, headers);
+            deletePackage();
+            return finish(success);
+        } catch (GeneralSecurityException e) {
+            deletePackage();
+            throw e;
+        }
+    }
+
+    private static PackageMetadata readMetadata(final RemoteZip zip) throws IOException, GeneralSecurityException {
+        final RemoteZip.Entry metadataEntry = zip.getEntry(PackageMetadata.ENTRY_NAME);
+        if (metadataEntry == null) {
+            throw new GeneralSecurityException("missing zip entry: " + PackageMetadata.ENTRY_NAME);
+        }
+        return PackageMetadata.parse(new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(zip.read(metadataEntry)))));
+    }
+
+    private void copyCareMap(final RemoteZip zip) throws IOException {
+        Files.deleteIfExists(careMapFile.toPath());
+        final RemoteZip.Entry careMapEntry = zip.getEntry("care_map.pb");
+        if (careMapEntry == null) {
+            Log.w(TAG, "care_map.pb missing");
+        } else {
+            Files.write(careMapFile.toPath(), zip.read(careMapEntry));
+            careMapFile.setReadable(true, false);
+        }
+    }
+
+    private static List<String> readPayloadProperties(final RemoteZip zip) throws IOException, GeneralSecurityException {
+        final RemoteZip.Entry payloadProperties = zip.getEntry("payload_properties.txt");
+        if (payloadProperties == null) {
+            throw new GeneralSecurityException("missing zip entry: payload_properties.txt");
+        }
+        final List<String> headers = new ArrayList<>();
+        final BufferedReader propertiesReader = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(zip.read(payloadProperties))));
+        for (String line; (line = propertiesReader.readLine()) != null; ) {
+            headers.add(line);
+        }
+        return headers;
+    }
+
+    private static long[] getPayload(final PackageMetadata metadata) throws GeneralSecurityException {
+        final long[] payload = metadata.getPropertyFile("payload.bin");
+        if (payload == null) {
+            throw new GeneralSecurityException("missing streaming property file: payload.bin");
+        }
+        return payload;
+    }
+
+    // Checks the package using only its small entries and has update_engine stream the payload
+    // from the server straight into the inactive slot, so the package is never stored on disk.
+    // The payload itself is signed and verified by update_engine.
+    private boolean streamUpdate(final String path, final long targetBuildDate)
+            throws IOException, GeneralSecurityException {
+        final RemoteZip zip = new RemoteZip(() -> open(path));
+        final PackageMetadata metadata = readMetadata(zip);
+        metadata.check(targetBuildDate, properties);
+        final long[] payload = getPayload(metadata);
+        copyCareMap(zip);
+
+        final List<String> headers = readPayloadProperties(zip);
+        headers.addAll(transport.getPayloadHeaders());
+
+        final boolean success = applyUpdate(mirrors.getCurrent() + path, payload[0], payload[1],
+                headers.toArray(new String[0]));
+        deletePackage();
+        return success;
+    }
+
+    // Stores the package as usual while update_engine applies the payload from the part that has
+    // already arrived, served over loopback by a PayloadServer. Installing no longer waits for the
+    // whole download and the package is still kept for resuming an interrupted download. As with
+    // streaming, the metadata is checked up front and the payload signature by update_engine.
+    private boolean overlapUpdate(final String path, final long targetBuildDate,
+            final DownloadJournal journal) throws IOException, GeneralSecurityException {
+        final RemoteZip zip = new RemoteZip(() -> open(path));
+        final PackageMetadata metadata = readMetadata(zip);
+        try {
+            metadata.check(targetBuildDate, properties);
+        } catch (GeneralSecurityException e) {
+            deletePackage();
+            throw e;
+        }
+        final long[] payload = getPayload(metadata);
+        copyCareMap(zip);
+        final List<String> headers = readPayloadProperties(zip);
+
+        final SegmentedDownload download = createDownload(path, journal);
+        final long resumed = journal.getCompletedBytes();
+        final IOException[] failure = new IOException[1];
+        final boolean success;
+        try (final PayloadServer server = new PayloadServer(packageFile, payload[0], payload[1])) {
+            server.setAvailable(download.getContiguous());
+            server.start();
+
+            final Thread downloadThread = new Thread(() -> {
+                try {
+                    download.run((contiguous, progress, total) -> {
+                        Log.d(TAG, "downloaded " + progress + " from " + total + " bytes");
+                        server.setAvailable(contiguous);
+                        metrics.onDownloadProgress(progress - resumed);
+                    });
+                    Log.d(TAG, "download completed");
+                    server.setAvailable(journal.getContentLength());
+                } catch (IOException e) {
+                    failure[0] = e;
+                    server.fail(e);
+                } finally {
+                    metrics.setReconnects(download.getReconnects());
+                }
+            }, "download");
+            // pausing suspends the installation, while the download carries on
+            control.beginBackgroundWork();
+            downloadThread.start();
+
+            try {
+                success = applyUpdate(server.getUrl(), 0, payload[1], headers.toArray(new String[0]));
+            } finally {
+                // update_engine may give up before the download is done, and a cancelled or failed
+                // installation leaves it running too. Interrupting cancels it, and it's waited for
+                // since it writes to the package and the journal closed by the caller.
+                downloadThread.interrupt();
+                boolean interrupted = false;
+                while (true) {
+                    try {
+                        downloadThread.join();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                control.endBackgroundWork();
+            }
+        }
+        deletePackage();
+        // report why the update failed rather than failing silently
+        if (failure[0] != null && !success) {
+            throw failure[0];
+        }
+        return success;
+    }
+
+    // Chooses the package to fetch next, or returns null if the device is up-to-date.
+    private Selection check(final String channel, final boolean streaming) throws IOException, GeneralSecurityException {
+        final String device = properties.get(PROPERTY_DEVICE, "");
+        final String sourceIncremental = properties.get(PROPERTY_INCREMENTAL, "");
+
+        HttpURLConnection connection = null;
+        try {
+            final String metadataPath = device + "-" + channel;
+            Log.d(TAG, "fetching metadata for " + metadataPath);
+            // the mirror ranking is refreshed with the same request, so a stale one costs no more
+            // than a round trip to each mirror in parallel
+            mirrors.probe(metadataPath);
+            int responseCode;
+            while (true) {
+                connection = open(metadataPath);
+                // validators are only kept from a response saying the device is up-to-date, so an
+                // unmodified response means that it still is
+                if (metadataPath.equals(preferences.getString(PREFERENCE_METADATA_PATH, null))) {
+                    final String etag = preferences.getString(PREFERENCE_METADATA_ETAG, null);
+                    if (etag != null) {
+                        connection.setRequestProperty("If-None-Match", etag);
+                    }
+                    final String lastModified = preferences.getString(PREFERENCE_METADATA_LAST_MODIFIED, null);
+                    if (lastModified != null) {
+                        connection.setRequestProperty("If-Modified-Since", lastModified);
+                    }
+                }
+                try {
+                    final long connectStart = System.nanoTime();
+                    connection.connect();
+                    final long connected = System.nanoTime();
+                    responseCode = connection.getResponseCode();
+                    metrics.setConnectTiming((connected - connectStart) / 1000000, (System.nanoTime() - connectStart) / 1000000);
+                    if (responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                        throw new IOException("unexpected response code " + responseCode + " for " + connection.getURL());
+                    }
+                    break;
+                } catch (IOException e) {
+                    final String url = connection.getURL().toString();
+                    Connections.release(connection);
+                    connection = null;
+                    if (!mirrors.onFailure(url)) {
+                        throw e;
+                    }
+                    Log.d(TAG, "metadata unavailable from " + url, e);
+                }
+            }
+            // the server can say when it's worth checking again, including when unmodified
+            preferences.putLong(PREFERENCE_CHECK_HINT,
+                    PollingPolicy.parseNextCheck(connection.getHeaderField(PollingPolicy.NEXT_CHECK_HEADER)));
+            recordRelease(properties.getLong(PROPERTY_BUILD_DATE, 0));
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                metrics.setResult("not modified");
+                incrementCounter(PREFERENCE_METADATA_NOT_MODIFIED);
+                incrementCounter(PREFERENCE_EMPTY_CHECKS);
+                listener.onUpToDate(channel);
+                Log.d(TAG, "metadata not modified since the last up-to-date check");
+                return null;
+            }
+            incrementCounter(PREFERENCE_METADATA_MODIFIED);
+            final String[] metadata;
+            try (final BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
+                final String line = reader.readLine();
+                if (line == null) {
+                    throw new IOException("malformed metadata: empty");
+                }
+                metadata = line.split(" ");
+                if (metadata.length < 4) {
+                    throw new IOException("malformed metadata: " + line);
+                }
+            }
+
+            final String targetIncremental = metadata[0];
+            metrics.setTarget(targetIncremental);
+            final long targetBuildDate;
+            try {
+                targetBuildDate = Long.parseLong(metadata[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("malformed metadata: " + metadata[1], e);
+            }
+            final long sourceBuildDate = properties.getLong(PROPERTY_BUILD_DATE, 0);
+            if (targetBuildDate <= sourceBuildDate) {
+                preferences.putString(PREFERENCE_METADATA_PATH, metadataPath);
+                preferences.putString(PREFERENCE_METADATA_ETAG, connection.getHeaderField("ETag"));
+                preferences.putString(PREFERENCE_METADATA_LAST_MODIFIED, connection.getHeaderField("Last-Modified"));
+                incrementCounter(PREFERENCE_EMPTY_CHECKS);
+                listener.onUpToDate(channel);
+                Log.d(TAG, "targetBuildDate: " + targetBuildDate + " not higher than sourceBuildDate: " + sourceBuildDate);
+                metrics.setResult("up to date");
+                return null;
+            }
+            preferences.putString(PREFERENCE_METADATA_PATH, null);
+            preferences.putLong(PREFERENCE_EMPTY_CHECKS, 0);
+            recordRelease(targetBuildDate);
+            final String targetDevice = metadata[2];
+            if (!targetDevice.equals(device)) {
+                throw new GeneralSecurityException("targetDevice: " + targetDevice + " does not match device: " + device);
+            }
+            final String targetChannel = metadata[3];
+            if (!targetChannel.equals(channel)) {
+                throw new GeneralSecurityException("targetChannel: " + targetChannel + " does not match channel: " + channel);
+            }
+            Connections.release(connection);
+            connection = null;
+
+            listener.onDownloadProgress(0, 100);
+
+            String downloadFile = preferences.getString(PREFERENCE_DOWNLOAD_FILE, null);
+
+            final String streamingPrefix = streaming ? "-streaming" : "";
+            // the full package of the target is always the fallback, since an incremental listed
+            // by a stale index or not yet on a mirror can still be missing
+            final String fullUpdate = device + streamingPrefix + "-ota_update-" + targetIncremental + ".zip";
+            final String incrementalUpdate;
+            final long incrementalBuildDate;
+            final List<UpdatePlanner.Step> plan = fetchPlan(device, sourceIncremental, sourceBuildDate,
+                    targetIncremental, targetBuildDate);
+            if (plan.isEmpty()) {
+                // without a plan the incremental is tried first
+                incrementalUpdate = device + streamingPrefix + "-incremental-" + sourceIncremental + "-" + targetIncremental + ".zip";
+                incrementalBuildDate = targetBuildDate;
+            } else {
+                Log.d(TAG, "update plan: " + plan);
+                final UpdatePlanner.Step step = plan.get(0);
+                incrementalUpdate = step.isFull() ? null :
+                        device + streamingPrefix + "-incremental-" + sourceIncremental + "-" + step.targetIncremental + ".zip";
+                incrementalBuildDate = step.targetBuildDate;
+            }
+
+            final boolean resume = downloadFile != null &&
+                    (downloadFile.equals(incrementalUpdate) || downloadFile.equals(fullUpdate));
+            if (resume) {
+                Log.d(TAG, "resume fetch of " + downloadFile);
+                connection = openPackage(downloadFile);
+            } else {
+                if (incrementalUpdate != null) {
+                    try {
+                        Log.d(TAG, "fetch incremental " + incrementalUpdate);
+                        downloadFile = incrementalUpdate;
+                        connection = openPackage(downloadFile);
+                    } catch (final IOException e) {
+                        Log.d(TAG, "incremental not found");
+                    }
+                }
+                if (connection == null) {
+                    Log.d(TAG, "fetch full update " + fullUpdate);
+                    downloadFile = fullUpdate;
+                    connection = openPackage(downloadFile);
+                }
+            }
+            final long packageBuildDate = downloadFile.equals(fullUpdate) ? targetBuildDate : incrementalBuildDate;
+            return new Selection(downloadFile, packageBuildDate, connection.getContentLengthLong(), resume);
+        } finally {
+            if (connection != null) {
+                Connections.release(connection);
+            }
+        }
+    }
+
+    // The package picked by the check, persisted once its download starts so an attempt cut short
+    // by the process being killed can carry on without checking again.
+    private static class Selection {
+        final String path;
+        final long buildDate;
+        final long contentLength;
+        final boolean resume;
+
+        Selection(final String path, final long buildDate, final long contentLength, final boolean resume) {
+            this.path = path;
+            this.buildDate = buildDate;
+            this.contentLength = contentLength;
+            this.resume = resume;
+        }
+    }
+
+    static boolean isReadyToInstall(final Phase phase) {
+        return phase == Phase.READY || phase == Phase.APPLY;
+    }
+
+    // whether an attempt without the network has something to install, given the saved phase
+    static boolean isReadyToInstall(final String phase) {
+        return Phase.READY.name().equals(phase) || Phase.APPLY.name().equals(phase);
+    }
+
+    private Phase getSavedPhase() {
+        final String phase = preferences.getString(PREFERENCE_PHASE, null);
+        if (phase != null) {
+            try {
+                return Phase.valueOf(phase);
+            } catch (IllegalArgumentException e) {}
+        }
+        return null;
+    }
+
+    // An install request coalesced into the attempt raises this after it started.
+    private boolean isInstalling() {
+        return install || control.isInstallRequested();
+    }
+
+    private void enterPhase(final Phase phase) throws InterruptedIOException {
+        control.enterPhase(phase);
+        preferences.putString(PREFERENCE_PHASE, phase.name());
+    }
+
+    // Returns the package of an attempt that was interrupted after choosing it or null.
+    private Selection getSavedSelection() {
+        final Phase phase = getSavedPhase();
+        final String path = preferences.getString(PREFERENCE_DOWNLOAD_FILE, null);
+        final long buildDate = preferences.getLong(PREFERENCE_PACKAGE_BUILD_DATE, 0);
+        if (phase != Phase.DOWNLOAD && phase != Phase.VERIFY && !isReadyToInstall(phase) || path == null || buildDate == 0) {
+            return null;
+        }
+        if (isReadyToInstall(phase) && packageFile.exists()) {
+            // the package is complete, so installing it doesn't need the network
+            Log.d(TAG, "continuing in " + phase + " phase with " + path);
+            return new Selection(path, buildDate, packageFile.length(), true);
+        }
+        HttpURLConnection connection = null;
+        try {
+            connection = openPackage(path);
+            Log.d(TAG, "continuing in " + phase + " phase with " + path);
+            return new Selection(path, buildDate, connection.getContentLengthLong(), true);
+        } catch (IOException e) {
+            Log.d(TAG, "unable to continue with " + path + ", checking again", e);
+            return null;
+        } finally {
+            if (connection != null) {
+                Connections.release(connection);
+            }
+        }
+    }
+
+    // Without install, the attempt stops once the package is downloaded and verified, which leaves
+    // applying it to an attempt run under the install job's constraints. Streaming and overlap
+    // installs download while applying, so those only check and leave the rest to the install job.
+    Result run(final String channel, final boolean streaming, final boolean install,
+            final UpdateOrchestrator.Control control) throws IOException, GeneralSecurityException {
+        this.control = control;
+        this.install = install;
+        DownloadJournal journal = null;
+        PackageVerifier verifier = null;
+        try {
+            final boolean overlap = properties.getBoolean(PROPERTY_OVERLAP_INSTALL, false);
+            if (!isInstalling() && isReadyToInstall(getSavedPhase())) {
+                Log.d(TAG, "update ready to install already");
+                return Result.READY;
+            }
+            if (getSavedPhase() == Phase.APPLY) {
+                // an installation that outlived the last process is followed rather than started
+                // again, which would need the package downloaded and verified again
+                enterPhase(Phase.APPLY);
+                final Session session = applier.reattach(control);
+                if (session != Session.NONE) {
+                    Log.d(TAG, "reattached to payload application");
+                    metrics.setMode("reattached");
+                    control.checkCancelled();
+                    final boolean success = session == Session.SUCCEEDED;
+                    metrics.setResult(success ? "success" : "payload application failed");
+                    deletePackage();
+                    return finish(success);
+                }
+            }
+            Selection selection = streaming ? null : getSavedSelection();
+            if (selection == null) {
+                enterPhase(Phase.CHECK);
+                selection = check(channel, streaming);
+                if (selection == null) {
+                    preferences.putString(PREFERENCE_PHASE, null);
+                    return Result.NONE;
+                }
+            }
+            if (!isInstalling() && (streaming || overlap)) {
+                Log.d(TAG, "update available, leaving the download to the install job");
+                metrics.setResult("ready to install");
+                return Result.READY;
+            }
+            final String downloadFile = selection.path;
+            final long packageBuildDate = selection.buildDate;
+            final long contentLength = selection.contentLength;
+            metrics.setPackage(downloadFile, contentLength);
+
+            if (streaming) {
+                metrics.setMode("streaming");
+                Log.d(TAG, "streaming " + downloadFile);
+                return finish(streamUpdate(downloadFile, packageBuildDate));
+            }
+
+            enterPhase(Phase.DOWNLOAD);
+            if (selection.resume) {
+                journal = DownloadJournal.open(journalFile, packageFile, contentLength);
+            }
+            if (journal == null) {
+                keepStalePackage();
+                journal = DownloadJournal.create(journalFile, contentLength);
+            }
+            preferences.putString(PREFERENCE_DOWNLOAD_FILE, downloadFile);
+            preferences.putLong(PREFERENCE_PACKAGE_BUILD_DATE, packageBuildDate);
+
+            metrics.setMode("download");
+            metrics.setResumed(journal.getCompletedBytes());
+            if (journal.isComplete()) {
+                Log.d(TAG, "download completed previously");
+                // The journal has just checked every chunk against its CRC, which catches the
+                // file changing in a way the cache's fingerprint doesn't cover. Only the far more
+                // expensive signature verification is skipped, while the metadata is still checked
+                // against the current build.
+                if (verificationCache.isVerified(downloadFile, packageBuildDate)) {
+                    Log.d(TAG, "package verified previously");
+                    return onDownloadFinished(downloadFile, packageBuildDate, null);
+                }
+                verifier = createVerifier(contentLength);
+                verifier.start();
+                return onDownloadFinished(downloadFile, packageBuildDate, verifier);
+            }
+
+            final String packagePath = downloadFile;
+            // reject a package that would fail the metadata checks before spending the transfer
+            if (!overlap) {
+                try {
+                    final RemoteZip zip = new RemoteZip(() -> open(packagePath));
+                    readMetadata(zip).check(packageBuildDate, properties);
+                    Log.d(TAG, "metadata checked before download with " + zip.getRequestCount() + " requests");
+                } catch (GeneralSecurityException e) {
+                    deletePackage();
+                    throw e;
+                } catch (IOException e) {
+                    control.checkCancelled();
+                    // the checks are repeated once the package has been downloaded and verified
+                    Log.d(TAG, "unable to check metadata before download", e);
+                }
+            }
+
+            journal.setSyncBytes(properties.getLong(PROPERTY_SYNC_BYTES, DownloadJournal.DEFAULT_SYNC_BYTES));
+            try {
+                preallocate(contentLength);
+            } catch (IOException e) {
+                if (!staleFile.exists()) {
+                    throw e;
+                }
+                // the new package takes precedence over the space held by the stale one
+                staleFile.delete();
+                preallocate(contentLength);
+            }
+            if (staleFile.exists()) {
+                if (overlap) {
+                    // the package is served to update_engine as it arrives, in order
+                    staleFile.delete();
+                } else {
+                    reuseStalePackage(packagePath, journal);
+                    control.checkCancelled();
+                }
+            }
+            final long downloaded = journal.getCompletedBytes();
+            listener.onDownloadStart(packageFile, downloaded, contentLength);
+            // lets the next job tell the scheduler how much is left to fetch
+            preferences.putLong(PREFERENCE_PENDING_BYTES, contentLength - downloaded);
+
+            if (overlap) {
+                // a pause before this point takes effect here, before the installation starts
+                control.awaitResume();
+                metrics.setMode("overlap");
+                Log.d(TAG, "installing " + downloadFile + " while downloading");
+                return finish(overlapUpdate(packagePath, packageBuildDate, journal));
+            }
+
+            final SegmentedDownload download = createDownload(packagePath, journal);
+
+            // chunks completed by an earlier attempt are hashed again while the rest is downloaded
+            verifier = createVerifier(contentLength);
+            verifier.start();
+            verifier.setAvailable(download.getContiguous());
+
+            final PackageVerifier packageVerifier = verifier;
+            // a pause that came before the transfer takes effect at its first awaitResume
+            control.setInterruptible(true);
+            while (true) {
+                control.awaitResume();
+                final long runStart = System.nanoTime();
+                final long runBytes = journal.getCompletedBytes();
+                try {
+                    download.run((contiguous, progress, total) -> {
+                        Log.d(TAG, "downloaded " + progress + " from " + total + " bytes");
+                        listener.onDownloadProgress(progress, total);
+                        packageVerifier.setAvailable(contiguous);
+                        metrics.onDownloadProgress(progress - downloaded);
+                    });
+                    // ranks the mirror by what it delivered for the next attempt
+                    final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - runStart);
+                    if (elapsed > 0) {
+                        mirrors.onThroughput((journal.getCompletedBytes() - runBytes) * 1000 / elapsed);
+                    }
+                    break;
+                } catch (IOException e) {
+                    if (!control.isPaused()) {
+                        throw e;
+                    }
+                    // the bytes fetched so far are kept and the rest is requested once resumed
+                    Log.d(TAG, "download paused after " + download.getContiguous() + " contiguous bytes");
+                } finally {
+                    metrics.setReconnects(download.getReconnects());
+                }
+            }
+            control.setInterruptible(false);
+            // a pause that came too late to stop the download still holds the attempt
+            control.awaitResume();
+
+            Log.d(TAG, "download completed");
+            return onDownloadFinished(downloadFile, packageBuildDate, verifier);
+        } catch (GeneralSecurityException e) {
+            // the package was rejected, so the next attempt has to check again
+            preferences.putString(PREFERENCE_PHASE, null);
+            preferences.putLong(PREFERENCE_PENDING_BYTES, 0);
+            throw e;
+        } catch (IOException e) {
+            // report cancellation rather than the failure it caused
+            control.checkCancelled();
+            throw e;
+        } finally {
+            control.setInterruptible(false);
+            if (verifier != null) {
+                verifier.cancel();
+            }
+            if (journal != null) {
+                try {
+                    journal.close();
+                } catch (IOException e) {}
+            }
+        }
+    }
+
+    // hashes the package alongside the download, overridden by the host tests whose packages
+    // aren't signed with a key the device trusts
+    PackageVerifier createVerifier(final long contentLength) throws GeneralSecurityException {
+        return new PackageVerifier(packageFile, contentLength);
+    }
+
+    // Reserving the whole package up front keeps it contiguous and fails right away rather than
+    // partway through when space runs out. Progress comes from the journal rather than the file
+    // length, so this is fine for a resumed download as well.
+    private void preallocate(final long contentLength) throws IOException {
+        try (final RandomAccessFile file = new RandomAccessFile(packageFile, "rw")) {
+            allocator.allocate(file.getFD(), contentLength);
+        }
+    }
+
+    private SegmentedDownload createDownload(final String path, final DownloadJournal journal) {
+        final SegmentedDownload download = new SegmentedDownload(new SegmentedDownload.ConnectionFactory() {
+            @Override
+            public HttpURLConnection open() throws IOException {
+                return Updater.this.open(path);
+            }
+
+            // a failed segment resumes from the next mirror at the offset it reached
+            @Override
+            public boolean onFailure(final String url) {
+                return mirrors.onFailure(url);
+            }
+        }, packageFile, journal);
+        // dropped and stalled connections are retried in place before the job scheduler has to
+        download.setReconnectBudget((int) properties.getLong(PROPERTY_RECONNECT_BUDGET,
+                SegmentedDownload.DEFAULT_RECONNECT_BUDGET));
+        download.setPacer(pacer);
+        return download;
+    }
+
+    private Result finish(final boolean installed) throws InterruptedIOException {
+        preferences.putLong(PREFERENCE_PENDING_BYTES, 0);
+        if (installed) {
+            enterPhase(Phase.AWAIT_REBOOT);
+            return Result.INSTALLED;
+        }
+        preferences.putString(PREFERENCE_PHASE, null);
+        return Result.NONE;
+    }
+}
@@ -0,0 +1,85 @@
+package app.seamlessupdate.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+// Remembers the package that passed verification, so a later attempt with the same file, such as
+// the install job or a retry after a cancelled install, doesn't have to read all of it again. The
+// file is identified by the package it was downloaded as along with its length, modification
+// time, inode and a digest of its first and last bytes, which hold the signature. Anything not
+// matching discards the entry and the package is verified as usual. The fingerprint alone misses
+// changes in the middle of the file, so it's only consulted once the download journal has checked
+// every chunk.
+class VerificationCache {
+    private static final String TAG = "VerificationCache";
+    private static final int FINGERPRINT_BYTES = 64 * 1024;
+
+    private final File file;
+    private final Updater.PreferencesStore preferences;
+
+    VerificationCache(final File file, final Updater.PreferencesStore preferences) {
+        this.file = file;
+        this.preferences = preferences;
+    }
+
+    private String identify(final String path, final long buildDate) throws IOException, GeneralSecurityException {
+        final BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        // the file key holds the device and inode where the platform provides them
+        return path + " " + buildDate + " " + attributes.size() + " " +
+                attributes.lastModifiedTime().toMillis() + " " + attributes.fileKey() + " " +
+                fingerprint(attributes.size());
+    }
+
+    private String fingerprint(final long size) throws IOException, GeneralSecurityException {
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        final byte[] buffer = new byte[(int) Math.min(size, FINGERPRINT_BYTES)];
+        try (final RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            input.readFully(buffer);
+            digest.update(buffer);
+            input.seek(size - buffer.length);
+            input.readFully(buffer);
+            digest.update(buffer);
+        }
+        final StringBuilder builder = new StringBuilder();
+        for (final byte b : digest.digest()) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+
+    // whether the file is still the package verified as path for buildDate
+    boolean isVerified(final String path, final long buildDate) {
+        final String saved = preferences.getString(Updater.PREFERENCE_VERIFIED_PACKAGE, null);
+        if (saved == null) {
+            return false;
+        }
+        try {
+            if (saved.equals(identify(path, buildDate))) {
+                return true;
+            }
+            Log.d(TAG, "package changed since it was verified");
+        } catch (IOException | GeneralSecurityException e) {
+            Log.d(TAG, "unable to identify package", e);
+        }
+        clear();
+        return false;
+    }
+
+    void record(final String path, final long buildDate) {
+        try {
+            preferences.putString(Updater.PREFERENCE_VERIFIED_PACKAGE, identify(path, buildDate));
+        } catch (IOException | GeneralSecurityException e) {
+            Log.d(TAG, "unable to identify package", e);
+            clear();
+        }
+    }
+
+    void clear() {
+        preferences.putString(Updater.PREFERENCE_VERIFIED_PACKAGE, null);
+    }
+}
@@ -0,0 +1,149 @@
+package app.seamlessupdate.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+// Builds synthetic update packages and the files the server publishes next to them, laid out like
+// the real ones: stored entries with the metadata listing where the payload and its properties
+// are within the package.
+public final class TestPackages {
+    public static final String DEVICE = "testdevice";
+
+    private TestPackages() {}
+
+    public static byte[] random(final int length, final long seed) {
+        final byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    private static void putStored(final ZipOutputStream zip, final String name, final byte[] data)
+            throws IOException {
+        final ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(data.length);
+        entry.setCompressedSize(data.length);
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        entry.setCrc(crc.getValue());
+        zip.putNextEntry(entry);
+        zip.write(data);
+        zip.closeEntry();
+    }
+
+    // Zip of the entries in order, stored or deflated. More than 65535 entries make it zip64.
+    public static byte[] zip(final Map<String, byte[]> entries, final boolean stored) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (final ZipOutputStream zip = new ZipOutputStream(output)) {
+            for (final Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                if (stored) {
+                    putStored(zip, entry.getKey(), entry.getValue());
+                } else {
+                    zip.putNextEntry(new ZipEntry(entry.getKey()));
+                    zip.write(entry.getValue());
+                    zip.closeEntry();
+                }
+            }
+        }
+        return output.toByteArray();
+    }
+
+    public static String metadata(final long timestamp, final String propertyFiles) {
+        return "ota-required-cache=0\n"
+                + "ota-streaming-property-files=" + propertyFiles + "\n"
+                + "ota-type=AB\n"
+                + "post-build=google/" + DEVICE + "/" + DEVICE + ":14/AP1A/" + timestamp + ":user/release-keys\n"
+                + "post-build-incremental=" + timestamp + "\n"
+                + "post-sdk-level=34\n"
+                + "post-security-patch-level=2024-01-05\n"
+                + "post-timestamp=" + timestamp + "\n"
+                + "pre-device=" + DEVICE + "\n";
+    }
+
+    // Unsigned package with the given payload, which is enough for everything but verification.
+    public static byte[] createPackage(final long timestamp, final byte[] payload) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final CountingOutputStream counter = new CountingOutputStream(output);
+        final StringBuilder propertyFiles = new StringBuilder();
+        try (final ZipOutputStream zip = new ZipOutputStream(counter)) {
+            final Map<String, byte[]> entries = new LinkedHashMap<>();
+            entries.put("payload.bin", payload);
+            entries.put("payload_properties.txt", ("FILE_HASH=test\nFILE_SIZE=" + payload.length
+                    + "\nMETADATA_HASH=test\nMETADATA_SIZE=0\n").getBytes(StandardCharsets.UTF_8));
+            entries.put("care_map.pb", random(512, timestamp));
+            for (final Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                final long headerOffset = counter.count;
+                putStored(zip, entry.getKey(), entry.getValue());
+                final long dataOffset = headerOffset + 30 + entry.getKey().length();
+                if (propertyFiles.length() > 0) {
+                    propertyFiles.append(',');
+                }
+                propertyFiles.append(entry.getKey()).append(':').append(dataOffset)
+                        .append(':').append(entry.getValue().length);
+            }
+            // last, so the offsets listed in it don't depend on its own length
+            putStored(zip, PackageMetadata.ENTRY_NAME,
+                    metadata(timestamp, propertyFiles.toString()).getBytes(StandardCharsets.UTF_8));
+        }
+        return output.toByteArray();
+    }
+
+    // Block map in the format read by BlockReuse.
+    public static byte[] blockMap(final byte[] content, final int blockSize) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        final StringBuilder map = new StringBuilder();
+        map.append(blockSize).append(' ').append(content.length).append('\n');
+        for (int offset = 0; offset < content.length; offset += blockSize) {
+            final int length = Math.min(blockSize, content.length - offset);
+            int a = 0;
+            int b = 0;
+            for (int i = 0; i < length; i++) {
+                a += content[offset + i] & 0xff;
+                b += a;
+            }
+            digest.update(content, offset, length);
+            map.append(Integer.toHexString((a & 0xffff) | (b << 16))).append(' ');
+            for (final byte hashByte : digest.digest()) {
+                map.append(String.format("%02x", hashByte));
+            }
+            map.append('\n');
+        }
+        return map.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,233 @@
+package app.seamlessupdate.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+
+// Stands in for the update server in the host tests and benchmarks. Files are served from memory
+// with support for HEAD and single Range requests, and the server can simulate a bandwidth cap,
+// latency, connections dropped partway through a response and unsatisfiable ranges.
+public class TestServer implements AutoCloseable {
+    private static final int WRITE_SIZE = 16 * 1024;
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final String scheme;
+    private final Map<String, byte[]> files = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, String>> headers = new ConcurrentHashMap<>();
+    private final List<String> requestLog = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicLong dropAfter = new AtomicLong(-1);
+    private final AtomicInteger rangeNotSatisfiable = new AtomicInteger();
+    private volatile long bytesPerSecond;
+    private volatile long latencyMillis;
+
+    public TestServer() throws IOException {
+        this(null);
+    }
+
+    // serves HTTPS with the given context, or HTTP for null
+    public TestServer(final SSLContext sslContext) throws IOException {
+        final InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+        if (sslContext == null) {
+            server = HttpServer.create(address, 0);
+            scheme = "http";
+        } else {
+            final HttpsServer httpsServer = HttpsServer.create(address, 0);
+            httpsServer.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+            server = httpsServer;
+            scheme = "https";
+        }
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    // base URL that the paths of the files are relative to
+    public String getUrl() {
+        return scheme + "://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    public void put(final String path, final byte[] content) {
+        files.put(path, content);
+    }
+
+    public void remove(final String path) {
+        files.remove(path);
+    }
+
+    public void setHeader(final String path, final String name, final String value) {
+        headers.computeIfAbsent(path, k -> new ConcurrentHashMap<>()).put(name, value);
+    }
+
+    // caps each response at this rate, with 0 for no cap, taking effect right away
+    public void setBytesPerSecond(final long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    // delays each response by this long before its headers are sent
+    public void setLatencyMillis(final long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    // drops the connection of the next response after this many bytes of its body
+    public void dropNextResponseAfter(final long bytes) {
+        dropAfter.set(bytes);
+    }
+
+    // answers the next count Range requests with 416 Range Not Satisfiable
+    public void refuseRanges(final int count) {
+        rangeNotSatisfiable.set(count);
+    }
+
+    public int getRequestCount() {
+        return requests.get();
+    }
+
+    // "<method> <path> <range or ->" for each request so far
+    public List<String> getRequestLog() {
+        synchronized (requestLog) {
+            return new ArrayList<>(requestLog);
+        }
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        try {
+            final String method = exchange.getRequestMethod();
+            final String path = exchange.getRequestURI().getPath().substring(1);
+            final String range = exchange.getRequestHeaders().getFirst("Range");
+            requests.incrementAndGet();
+            requestLog.add(method + " " + path + " " + (range == null ? "-" : range));
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+
+            final byte[] content = files.get(path);
+            if (content == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            final Map<String, String> extra = headers.get(path);
+            if (extra != null) {
+                for (final Map.Entry<String, String> header : extra.entrySet()) {
+                    exchange.getResponseHeaders().set(header.getKey(), header.getValue());
+                }
+            }
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+
+            long start = 0;
+            long end = content.length - 1;
+            int status = 200;
+            if (range != null) {
+                final long[] parsed = parseRange(range, content.length);
+                if (parsed == null || rangeNotSatisfiable.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + content.length);
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                start = parsed[0];
+                end = parsed[1];
+                status = 206;
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes " + start + "-" + end + "/" + content.length);
+            }
+            final long length = end - start + 1;
+            if (method.equals("HEAD")) {
+                exchange.getResponseHeaders().set("Content-Length", Long.toString(length));
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+            writeBody(exchange.getResponseBody(), content, (int) start, (int) length);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void writeBody(final OutputStream output, final byte[] content, final int start,
+            final int length) throws IOException, InterruptedException {
+        final long drop = dropAfter.getAndSet(-1);
+        // paced write by write, so a change of the rate applies to responses already underway
+        long due = System.nanoTime();
+        int written = 0;
+        while (written < length) {
+            int size = Math.min(WRITE_SIZE, length - written);
+            if (drop >= 0) {
+                if (written >= drop) {
+                    // ending the exchange early leaves the client with a truncated body
+                    throw new IOException("dropping connection after " + written + " bytes");
+                }
+                size = (int) Math.min(size, drop - written);
+            }
+            output.write(content, start + written, size);
+            written += size;
+            final long rate = bytesPerSecond;
+            if (rate > 0) {
+                due += TimeUnit.SECONDS.toNanos(1) * size / rate;
+                final long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+            } else {
+                due = System.nanoTime();
+            }
+        }
+    }
+
+    // returns the inclusive bounds of a single range or null if it can't be satisfied
+    private static long[] parseRange(final String range, final long length) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') != -1) {
+            return null;
+        }
+        final String spec = range.substring("bytes=".length());
+        final int dash = spec.indexOf('-');
+        if (dash == -1) {
+            return null;
+        }
+        try {
+            final long start;
+            final long end;
+            if (dash == 0) {
+                final long suffix = Long.parseLong(spec.substring(1));
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                end = dash == spec.length() - 1 ? length - 1 :
+                        Math.min(length - 1, Long.parseLong(spec.substring(dash + 1)));
+            }
+            if (start >= length || start > end) {
+                return null;
+            }
+            return new long[] { start, end };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
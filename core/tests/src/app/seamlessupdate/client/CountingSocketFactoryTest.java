@@ -0,0 +1,112 @@
+package app.seamlessupdate.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+// Requests to a local TLS stand-in for the update server, with a self-signed certificate for
+// 127.0.0.1 that the client trusts.
+public class CountingSocketFactoryTest {
+    private static final char[] PASSWORD = "test-password".toCharArray();
+    private static final String PATH = "package.zip";
+
+    private TestServer server;
+    private CountingSocketFactory socketFactory;
+    private byte[] content;
+
+    @Before
+    public void setUp() throws IOException, GeneralSecurityException {
+        final KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (final InputStream input = getClass().getResourceAsStream("/test-server.p12")) {
+            keyStore.load(input, PASSWORD);
+        }
+        final KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, PASSWORD);
+        final SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(keyManagers.getKeyManagers(), null, null);
+        server = new TestServer(serverContext);
+
+        final TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(keyStore);
+        final SSLContext clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, trustManagers.getTrustManagers(), null);
+        socketFactory = new CountingSocketFactory(clientContext.getSocketFactory());
+
+        content = TestPackages.random(256 * 1024, 1);
+        server.put(PATH, content);
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    private HttpURLConnection open(final String range) throws IOException {
+        final String url = server.getUrl() + PATH;
+        final HttpsURLConnection connection = (HttpsURLConnection) new URL(url).openConnection();
+        connection.setSSLSocketFactory(socketFactory);
+        connection.setRequestProperty("Range", range);
+        socketFactory.onRequest(url);
+        return connection;
+    }
+
+    private byte[] read(final HttpURLConnection connection) throws IOException {
+        assertEquals(HttpURLConnection.HTTP_PARTIAL, connection.getResponseCode());
+        try (final InputStream input = connection.getInputStream()) {
+            return input.readAllBytes();
+        }
+    }
+
+    @Test
+    public void reusesReleasedConnection() throws IOException {
+        for (int i = 0; i < 4; i++) {
+            final HttpURLConnection connection = open("bytes=" + i * 1024 + "-" + ((i + 1) * 1024 - 1));
+            assertEquals(1024, read(connection).length);
+            Connections.release(connection);
+        }
+        assertEquals(4, socketFactory.getRequests());
+        assertEquals(1, socketFactory.getConnections());
+    }
+
+    @Test
+    public void releaseDrainsUnreadBody() throws IOException {
+        HttpURLConnection connection = open("bytes=0-1023");
+        assertEquals(HttpURLConnection.HTTP_PARTIAL, connection.getResponseCode());
+        // nothing of the body is read, which is drained below the limit
+        Connections.release(connection);
+        connection = open("bytes=1024-2047");
+        assertArrayEquals(Arrays.copyOfRange(content, 1024, 2048), read(connection));
+        Connections.release(connection);
+        assertEquals(1, socketFactory.getConnections());
+    }
+
+    @Test
+    public void resumesSessionOnNewConnection() throws IOException {
+        // the server closes each connection after its response, so every request needs another
+        server.setHeader(PATH, "Connection", "close");
+        for (int i = 0; i < 3; i++) {
+            final HttpURLConnection connection = open("bytes=0-1023");
+            assertEquals(1024, read(connection).length);
+            Connections.release(connection);
+        }
+        assertEquals(3, socketFactory.getConnections());
+        assertTrue(socketFactory.getResumedSessions() >= 1);
+    }
+}
@@ -0,0 +1,104 @@
+package app.seamlessupdate.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class PackageMetadataTest {
+    private static final long TIMESTAMP = 2000;
+
+    private final Map<String, String> properties = new HashMap<>();
+    private final Updater.PropertySource source = new Updater.PropertySource() {
+        @Override
+        public String get(final String key, final String def) {
+            return properties.getOrDefault(key, def);
+        }
+
+        @Override
+        public long getLong(final String key, final long def) {
+            return def;
+        }
+
+        @Override
+        public boolean getBoolean(final String key, final boolean def) {
+            return def;
+        }
+    };
+
+    public PackageMetadataTest() {
+        properties.put(Updater.PROPERTY_DEVICE, TestPackages.DEVICE);
+        properties.put(Updater.PROPERTY_INCREMENTAL, "100");
+    }
+
+    private static PackageMetadata parse(final String metadata) throws IOException, GeneralSecurityException {
+        return PackageMetadata.parse(new BufferedReader(new StringReader(metadata)));
+    }
+
+    private void assertRejected(final String metadata) throws IOException {
+        try {
+            parse(metadata).check(TIMESTAMP, source);
+            fail("accepted " + metadata);
+        } catch (GeneralSecurityException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void acceptsMatchingPackage() throws Exception {
+        final PackageMetadata metadata = parse(TestPackages.metadata(TIMESTAMP,
+                "payload.bin:1371:2146232461,care_map.pb:2146234100:1023"));
+        metadata.check(TIMESTAMP, source);
+        assertArrayEquals(new long[] { 1371, 2146232461 }, metadata.getPropertyFile("payload.bin"));
+        assertArrayEquals(new long[] { 2146234100L, 1023 }, metadata.getPropertyFile("care_map.pb"));
+        assertNull(metadata.getPropertyFile("missing"));
+    }
+
+    @Test
+    public void keepsValuesContainingSeparator() throws Exception {
+        properties.put(Updater.PROPERTY_FINGERPRINT, "a/b:14/x=y");
+        parse(TestPackages.metadata(TIMESTAMP, "payload.bin:0:1") + "pre-build=a/b:14/x=y\n")
+                .check(TIMESTAMP, source);
+    }
+
+    @Test
+    public void rejectsMismatches() throws IOException {
+        assertRejected(TestPackages.metadata(TIMESTAMP + 1, "payload.bin:0:1"));
+        assertRejected(TestPackages.metadata(TIMESTAMP, "payload.bin:0:1").replace("pre-device=", "pre-device=other"));
+        assertRejected(TestPackages.metadata(TIMESTAMP, "payload.bin:0:1").replace("ota-type=AB", "ota-type=BLOCK"));
+        assertRejected(TestPackages.metadata(TIMESTAMP, "payload.bin:0:1") + "serialno=1234\n");
+        assertRejected(TestPackages.metadata(TIMESTAMP, "payload.bin:0:1") + "pre-build-incremental=99\n");
+    }
+
+    @Test
+    public void rejectsMalformedTimestamp() throws IOException {
+        assertRejected(TestPackages.metadata(TIMESTAMP, "payload.bin:0:1")
+                .replace("post-timestamp=" + TIMESTAMP, "post-timestamp=soon"));
+    }
+
+    @Test
+    public void rejectsMalformedPropertyFiles() throws Exception {
+        for (final String propertyFiles : new String[] { "payload.bin:x:1", "payload.bin:1", "payload.bin:-1:5" }) {
+            try {
+                parse(TestPackages.metadata(TIMESTAMP, propertyFiles)).getPropertyFile("payload.bin");
+                fail("accepted " + propertyFiles);
+            } catch (GeneralSecurityException e) {
+                // expected
+            }
+        }
+        try {
+            parse("post-timestamp=" + TIMESTAMP + "\n").getPropertyFile("payload.bin");
+            fail();
+        } catch (GeneralSecurityException e) {
+            // expected
+        }
+    }
+}
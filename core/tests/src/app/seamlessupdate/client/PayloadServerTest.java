@@ -0,0 +1,166 @@
+package app.seamlessupdate.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+// Fetches the payload the way update_engine does, with plain HTTP requests over loopback.
+public class PayloadServerTest {
+    private static final int OFFSET = 1000;
+    private static final int SIZE = 2 * 1024 * 1024;
+
+    private File file;
+    private byte[] content;
+    private PayloadServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("package", ".zip");
+        content = TestPackages.random(OFFSET + SIZE + 500, 1);
+        Files.write(file.toPath(), content);
+        server = new PayloadServer(file, OFFSET, SIZE);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+        file.delete();
+    }
+
+    private byte[] payload(final int start, final int end) {
+        return Arrays.copyOfRange(content, OFFSET + start, OFFSET + end);
+    }
+
+    private static HttpURLConnection open(final String url, final String range) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setReadTimeout(30000);
+        if (range != null) {
+            connection.setRequestProperty("Range", range);
+        }
+        return connection;
+    }
+
+    private static byte[] read(final HttpURLConnection connection) throws IOException {
+        try (final InputStream input = connection.getInputStream()) {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[64 * 1024];
+            for (int n; (n = input.read(buffer)) != -1; ) {
+                output.write(buffer, 0, n);
+            }
+            return output.toByteArray();
+        }
+    }
+
+    private CompletableFuture<byte[]> fetchAsync(final String range) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return read(open(server.getUrl(), range));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    // the connection is closed before the promised length, which a client reports as an error
+    private static void assertTruncated(final CompletableFuture<byte[]> fetch) throws Exception {
+        try {
+            assertTrue(fetch.get(10, TimeUnit.SECONDS).length < SIZE);
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void servesPayloadAndRanges() throws IOException {
+        server.setAvailable(content.length);
+        HttpURLConnection connection = open(server.getUrl(), null);
+        assertEquals(200, connection.getResponseCode());
+        assertEquals(SIZE, connection.getContentLengthLong());
+        assertArrayEquals(payload(0, SIZE), read(connection));
+
+        connection = open(server.getUrl(), "bytes=100-199");
+        assertEquals(206, connection.getResponseCode());
+        assertEquals("bytes 100-199/" + SIZE, connection.getHeaderField("Content-Range"));
+        assertArrayEquals(payload(100, 200), read(connection));
+
+        connection = open(server.getUrl(), "bytes=-10");
+        assertArrayEquals(payload(SIZE - 10, SIZE), read(connection));
+
+        connection = open(server.getUrl(), "bytes=" + (SIZE - 5) + "-");
+        assertArrayEquals(payload(SIZE - 5, SIZE), read(connection));
+    }
+
+    @Test
+    public void rejectsOtherPathsAndBadRanges() throws IOException {
+        server.setAvailable(content.length);
+        assertEquals(404, open(server.getUrl() + "x", null).getResponseCode());
+        assertEquals(416, open(server.getUrl(), "bytes=" + SIZE + "-").getResponseCode());
+        assertEquals(416, open(server.getUrl(), "bytes=0-1,5-6").getResponseCode());
+    }
+
+    @Test
+    public void blocksUntilAvailable() throws Exception {
+        server.setAvailable(OFFSET + SIZE / 2);
+        final CompletableFuture<byte[]> first = fetchAsync("bytes=0-1023");
+        assertArrayEquals(payload(0, 1024), first.get(10, TimeUnit.SECONDS));
+
+        final CompletableFuture<byte[]> rest = fetchAsync(null);
+        try {
+            rest.get(500, TimeUnit.MILLISECONDS);
+            fail("served bytes that aren't available");
+        } catch (TimeoutException e) {
+            // expected
+        }
+        server.setAvailable(OFFSET + SIZE);
+        assertArrayEquals(payload(0, SIZE), rest.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void newConnectionReplacesLast() throws Exception {
+        server.setAvailable(OFFSET + 1024);
+        final CompletableFuture<byte[]> first = fetchAsync(null);
+        Thread.sleep(200);
+        assertFalse(first.isDone());
+        final CompletableFuture<byte[]> second = fetchAsync("bytes=0-1023");
+        assertTruncated(first);
+        assertArrayEquals(payload(0, 1024), second.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void failedDownloadEndsResponse() throws Exception {
+        server.setAvailable(OFFSET);
+        final CompletableFuture<byte[]> fetch = fetchAsync(null);
+        Thread.sleep(200);
+        assertFalse(fetch.isDone());
+        server.fail(new IOException("test"));
+        assertTruncated(fetch);
+    }
+
+    @Test
+    public void closeEndsResponse() throws Exception {
+        final CompletableFuture<byte[]> fetch = fetchAsync(null);
+        Thread.sleep(200);
+        server.close();
+        assertTruncated(fetch);
+    }
+}
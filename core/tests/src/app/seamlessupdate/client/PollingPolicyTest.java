@@ -0,0 +1,77 @@
+package app.seamlessupdate.client;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class PollingPolicyTest {
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    // releases 30 days apart, with the next one expected 30 days after the last
+    private static final long[] RELEASES = {
+        TimeUnit.DAYS.toSeconds(100), TimeUnit.DAYS.toSeconds(130), TimeUnit.DAYS.toSeconds(160),
+    };
+    private static final long EXPECTED = 190 * DAY;
+
+    private static long interval(final int emptyChecks, final long hintMillis, final long nowMillis) {
+        return new PollingPolicy(emptyChecks, hintMillis, RELEASES).getIntervalMillis(nowMillis);
+    }
+
+    @Test
+    public void defaultWithoutHistory() {
+        assertEquals(PollingPolicy.DEFAULT_INTERVAL_MILLIS,
+                new PollingPolicy(0, -1, new long[0]).getIntervalMillis(EXPECTED));
+    }
+
+    @Test
+    public void expectsReleaseAtMedianSpacing() {
+        assertEquals(EXPECTED, new PollingPolicy(0, -1, RELEASES).getExpectedReleaseMillis());
+    }
+
+    @Test
+    public void checksOftenAroundExpectedRelease() {
+        assertEquals(PollingPolicy.MIN_INTERVAL_MILLIS, interval(0, -1, EXPECTED - 11 * HOUR));
+        assertEquals(PollingPolicy.MIN_INTERVAL_MILLIS, interval(0, -1, EXPECTED + 11 * HOUR));
+        assertEquals(PollingPolicy.DEFAULT_INTERVAL_MILLIS, interval(0, -1, EXPECTED - 13 * HOUR));
+    }
+
+    @Test
+    public void backsOffAfterEmptyChecks() {
+        final long now = EXPECTED - 10 * DAY;
+        assertEquals(PollingPolicy.DEFAULT_INTERVAL_MILLIS, interval(PollingPolicy.BACKOFF_CHECKS - 1, -1, now));
+        assertEquals(2 * PollingPolicy.DEFAULT_INTERVAL_MILLIS, interval(PollingPolicy.BACKOFF_CHECKS, -1, now));
+        assertEquals(PollingPolicy.MAX_INTERVAL_MILLIS, interval(100 * PollingPolicy.BACKOFF_CHECKS, -1, now));
+    }
+
+    @Test
+    public void hintLengthensInterval() {
+        assertEquals(12 * HOUR, interval(0, 12 * HOUR, EXPECTED));
+        assertEquals(PollingPolicy.MAX_INTERVAL_MILLIS, interval(0, 30 * DAY, EXPECTED));
+    }
+
+    @Test
+    public void hintNeverShortensBelowDefault() {
+        assertEquals(PollingPolicy.DEFAULT_INTERVAL_MILLIS, interval(0, TimeUnit.MINUTES.toMillis(1), EXPECTED - 10 * DAY));
+        assertEquals(PollingPolicy.DEFAULT_INTERVAL_MILLIS, interval(0, 0, EXPECTED));
+    }
+
+    @Test
+    public void parsesNextCheck() {
+        assertEquals(-1, PollingPolicy.parseNextCheck(null));
+        assertEquals(-1, PollingPolicy.parseNextCheck("soon"));
+        assertEquals(-1, PollingPolicy.parseNextCheck("-60"));
+        assertEquals(TimeUnit.HOURS.toMillis(6), PollingPolicy.parseNextCheck(" 21600 "));
+    }
+
+    @Test
+    public void keepsRecentReleases() {
+        String releases = null;
+        for (int i = 1; i <= PollingPolicy.MAX_RELEASES + 2; i++) {
+            releases = PollingPolicy.addRelease(releases, i);
+        }
+        releases = PollingPolicy.addRelease(releases, PollingPolicy.MAX_RELEASES + 2);
+        assertEquals("3,4,5,6,7,8,9,10", releases);
+    }
+}
@@ -0,0 +1,125 @@
+package app.seamlessupdate.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ProgressThrottleTest {
+    private static final long INTERVAL = 1000;
+
+    // like elapsedRealtime, well past the interval since boot
+    private long now = 1000000;
+    private final List<Runnable> tasks = new ArrayList<>();
+    private final List<Long> due = new ArrayList<>();
+    private final List<String> posts = new ArrayList<>();
+    private ProgressThrottle throttle;
+
+    @Before
+    public void setUp() {
+        throttle = new ProgressThrottle(new ProgressThrottle.Scheduler() {
+            @Override
+            public long now() {
+                return now;
+            }
+
+            @Override
+            public void schedule(final Runnable task, final long delayMillis) {
+                tasks.add(task);
+                due.add(now + delayMillis);
+            }
+
+            @Override
+            public void cancel(final Runnable task) {
+                final int index = tasks.indexOf(task);
+                if (index != -1) {
+                    tasks.remove(index);
+                    due.remove(index);
+                }
+            }
+        }, (title, progress, paused) -> posts.add(title + ":" + progress + (paused ? " paused" : "")),
+                INTERVAL);
+    }
+
+    private void advance(final long millis) {
+        now += millis;
+        while (!tasks.isEmpty() && due.get(0) <= now) {
+            due.remove(0);
+            tasks.remove(0).run();
+        }
+    }
+
+    @Test
+    public void postsFirstUpdateRightAway() {
+        throttle.update(1, 0);
+        advance(0);
+        assertEquals(List.of("1:0"), posts);
+    }
+
+    @Test
+    public void coalescesUpdatesWithinInterval() {
+        throttle.update(1, 0);
+        advance(0);
+        for (int progress = 1; progress <= 10; progress++) {
+            throttle.update(1, progress);
+            advance(50);
+        }
+        advance(INTERVAL);
+        assertEquals(List.of("1:0", "1:10"), posts);
+        assertEquals(2, throttle.getPosted());
+        assertTrue(throttle.getSuppressed() >= 9);
+    }
+
+    @Test
+    public void skipsUnchangedState() {
+        throttle.update(1, 5);
+        advance(0);
+        throttle.update(1, 5);
+        advance(INTERVAL);
+        assertEquals(List.of("1:5"), posts);
+    }
+
+    @Test
+    public void pauseKeepsProgress() {
+        throttle.update(1, 40);
+        advance(0);
+        throttle.setPaused(true);
+        advance(INTERVAL);
+        throttle.update(2, 0);
+        advance(INTERVAL);
+        assertEquals(List.of("1:40", "1:40 paused", "2:0 paused"), posts);
+    }
+
+    @Test
+    public void pauseBeforeFirstUpdate() {
+        throttle.setPaused(true);
+        advance(INTERVAL);
+        throttle.update(1, 0);
+        advance(0);
+        assertEquals(List.of("1:0 paused"), posts);
+    }
+
+    @Test
+    public void cancelDropsPendingUpdate() {
+        throttle.update(1, 0);
+        advance(0);
+        throttle.update(1, 1);
+        throttle.cancel();
+        advance(INTERVAL);
+        assertEquals(List.of("1:0"), posts);
+    }
+
+    @Test
+    public void resetPostsSameStateAgain() {
+        throttle.update(1, 0);
+        advance(0);
+        throttle.reset();
+        throttle.update(1, 0);
+        advance(INTERVAL);
+        assertEquals(List.of("1:0", "1:0"), posts);
+    }
+}
@@ -0,0 +1,147 @@
+package app.seamlessupdate.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RemoteZipTest {
+    private static final String PATH = "package.zip";
+
+    private TestServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new TestServer();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    private RemoteZip open(final byte[] content) throws IOException {
+        server.put(PATH, content);
+        return new RemoteZip(() -> (HttpURLConnection) new URL(server.getUrl() + PATH).openConnection());
+    }
+
+    @Test
+    public void readsStoredAndDeflatedEntries() throws IOException {
+        final Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("big.bin", TestPackages.random(512 * 1024, 1));
+        entries.put("text.txt", "hello\n".getBytes(StandardCharsets.UTF_8));
+        entries.put("empty", new byte[0]);
+        for (final boolean stored : new boolean[] { true, false }) {
+            final byte[] content = TestPackages.zip(entries, stored);
+            final RemoteZip zip = open(content);
+            assertEquals(content.length, zip.length());
+            for (final Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                assertArrayEquals(entry.getValue(), zip.read(zip.getEntry(entry.getKey())));
+            }
+            assertNull(zip.getEntry("missing"));
+        }
+    }
+
+    @Test
+    public void readsSmallEntriesOfPackageWithFewRequests() throws Exception {
+        final byte[] content = TestPackages.createPackage(2000, TestPackages.random(8 * 1024 * 1024, 2));
+        final RemoteZip zip = open(content);
+        final PackageMetadata metadata = PackageMetadata.parse(new BufferedReader(new StringReader(
+                new String(zip.read(zip.getEntry(PackageMetadata.ENTRY_NAME)), StandardCharsets.UTF_8))));
+        final long[] payload = metadata.getPropertyFile("payload.bin");
+        assertEquals(payload[0], zip.getDataOffset(zip.getEntry("payload.bin")));
+        assertEquals(payload[1], zip.getEntry("payload.bin").size);
+        assertNotNull(zip.read(zip.getEntry("care_map.pb")));
+        // the tail holds the directory and the small entries near it
+        assertTrue("requests: " + zip.getRequestCount(), zip.getRequestCount() <= 2);
+    }
+
+    @Test
+    public void readsZip64() throws IOException {
+        final Map<String, byte[]> entries = new LinkedHashMap<>();
+        for (int i = 0; i < 70000; i++) {
+            entries.put("entry" + i, Integer.toString(i).getBytes(StandardCharsets.UTF_8));
+        }
+        final byte[] content = TestPackages.zip(entries, true);
+        final RemoteZip zip = open(content);
+        // more entries than fit the classic end of central directory record
+        assertEquals(0xffff, ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN)
+                .getShort(content.length - 22 + 10) & 0xffff);
+        // the tail and then the rest of the central directory
+        assertEquals(2, zip.getRequestCount());
+        assertEquals(70000, countEntries(zip, entries));
+        assertArrayEquals("0".getBytes(StandardCharsets.UTF_8), zip.read(zip.getEntry("entry0")));
+        assertArrayEquals("69999".getBytes(StandardCharsets.UTF_8), zip.read(zip.getEntry("entry69999")));
+        assertTrue("requests: " + zip.getRequestCount(), zip.getRequestCount() <= 4);
+    }
+
+    private static int countEntries(final RemoteZip zip, final Map<String, byte[]> entries) {
+        int found = 0;
+        for (final String name : entries.keySet()) {
+            if (zip.getEntry(name) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    @Test
+    public void findsDirectoryBeforeComment() throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (final ZipOutputStream zip = new ZipOutputStream(output)) {
+            zip.putNextEntry(new ZipEntry("a"));
+            zip.write(1);
+            zip.closeEntry();
+            zip.setComment("x".repeat(60000));
+        }
+        final RemoteZip zip = open(output.toByteArray());
+        assertArrayEquals(new byte[] { 1 }, zip.read(zip.getEntry("a")));
+    }
+
+    @Test
+    public void rejectsNonZip() {
+        try {
+            open(TestPackages.random(200 * 1024, 3));
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void rejectsMalformedCentralDirectory() throws IOException {
+        final Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("a", new byte[] { 1 });
+        final byte[] content = TestPackages.zip(entries, true);
+        final ByteBuffer buffer = ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN);
+        final int directory = buffer.getInt(content.length - 22 + 16);
+        // a name running past the end of the directory
+        buffer.putShort(directory + 28, (short) 0x7fff);
+        try {
+            open(content);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package app.seamlessupdate.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SegmentedDownloadTest {
+    private static final String PATH = "package.zip";
+    private static final int LENGTH = 2 * DownloadJournal.CHUNK_SIZE + 1000;
+
+    private TestServer server;
+    private File directory;
+    private File file;
+    private byte[] content;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new TestServer();
+        content = TestPackages.random(LENGTH, 1);
+        server.put(PATH, content);
+        directory = Files.createTempDirectory("download").toFile();
+        file = new File(directory, PATH);
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+        for (final File child : directory.listFiles()) {
+            child.delete();
+        }
+        directory.delete();
+    }
+
+    // Fails the body partway through like OkHttp does when the connection drops, which is how the
+    // platform's HttpURLConnection reports it.
+    private static class DroppedConnection extends HttpURLConnection {
+        private final HttpURLConnection connection;
+        private final long dropAfter;
+
+        DroppedConnection(final HttpURLConnection connection, final long dropAfter) {
+            super(connection.getURL());
+            this.connection = connection;
+            this.dropAfter = dropAfter;
+        }
+
+        @Override
+        public void setRequestProperty(final String key, final String value) {
+            connection.setRequestProperty(key, value);
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            return connection.getResponseCode();
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return connection.getErrorStream();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new FilterInputStream(connection.getInputStream()) {
+                private long position;
+
+                @Override
+                public int read(final byte[] b, final int off, final int len) throws IOException {
+                    if (position >= dropAfter) {
+                        throw new ProtocolException("unexpected end of stream");
+                    }
+                    final int bytesRead = super.read(b, off, (int) Math.min(len, dropAfter - position));
+                    if (bytesRead > 0) {
+                        position += bytesRead;
+                    }
+                    return bytesRead;
+                }
+            };
+        }
+
+        @Override
+        public void connect() throws IOException {
+            connection.connect();
+        }
+
+        @Override
+        public void disconnect() {
+            connection.disconnect();
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+    }
+
+    private HttpURLConnection open() throws IOException {
+        return (HttpURLConnection) new URL(server.getUrl() + PATH).openConnection();
+    }
+
+    @Test
+    public void reconnectsAfterProtocolErrorInBody() throws Exception {
+        final int dropAfter = 64 * 1024;
+        final AtomicBoolean dropped = new AtomicBoolean();
+        try (final DownloadJournal journal = DownloadJournal.create(new File(directory, "journal"), LENGTH)) {
+            final SegmentedDownload download = new SegmentedDownload(() -> dropped.getAndSet(true) ?
+                    open() : new DroppedConnection(open(), dropAfter), file, journal);
+            download.run((contiguous, downloaded, contentLength) -> {});
+            assertEquals(1, download.getReconnects());
+        }
+        assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+        // the reconnected request only asks for what's missing from its chunk
+        assertEquals(4, server.getRequestCount());
+        boolean resumed = false;
+        for (final String request : server.getRequestLog()) {
+            final long start = Long.parseLong(request.substring(request.indexOf('=') + 1, request.indexOf('-')));
+            resumed |= start % DownloadJournal.CHUNK_SIZE == dropAfter;
+        }
+        assertTrue(resumed);
+    }
+
+    @Test
+    public void failsOnRefusedRange() throws Exception {
+        server.refuseRanges(1);
+        try (final DownloadJournal journal = DownloadJournal.create(new File(directory, "journal"), LENGTH)) {
+            final SegmentedDownload download = new SegmentedDownload(this::open, file, journal);
+            try {
+                download.run((contiguous, downloaded, contentLength) -> {});
+                fail("refused range not reported");
+            } catch (SegmentedDownload.RefusedException e) {
+                // expected
+            }
+            assertEquals(0, download.getReconnects());
+        }
+    }
+
+    @Test
+    public void failsOverWhenThroughputDrops() throws Exception {
+        try (final TestServer mirror = new TestServer()) {
+            mirror.put(PATH, content);
+            final String[] current = { server.getUrl() };
+            final SegmentedDownload.ConnectionFactory factory = new SegmentedDownload.ConnectionFactory() {
+                @Override
+                public HttpURLConnection open() throws IOException {
+                    return (HttpURLConnection) new URL(current[0] + PATH).openConnection();
+                }
+
+                @Override
+                public boolean onFailure(final String url) {
+                    synchronized (current) {
+                        if (url.startsWith(mirror.getUrl())) {
+                            return false;
+                        }
+                        current[0] = mirror.getUrl();
+                        return true;
+                    }
+                }
+            };
+            server.setBytesPerSecond(2 * 1024 * 1024);
+            final Thread slowdown = new Thread(() -> {
+                try {
+                    Thread.sleep(6000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                // still well above the stall watermark
+                server.setBytesPerSecond(32 * 1024);
+            });
+            slowdown.start();
+            final long start = System.nanoTime();
+            try (final DownloadJournal journal = DownloadJournal.create(new File(directory, "journal"), LENGTH)) {
+                new SegmentedDownload(factory, file, journal).run((contiguous, downloaded, contentLength) -> {});
+            } finally {
+                slowdown.interrupt();
+            }
+            assertArrayEquals(content, Files.readAllBytes(file.toPath()));
+            // the rest of the slow server's segments comes from the mirror, where they stopped
+            assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 60);
+            boolean resumed = false;
+            for (final String request : mirror.getRequestLog()) {
+                final long rangeStart = Long.parseLong(request.substring(request.indexOf('=') + 1, request.indexOf('-')));
+                resumed |= rangeStart % DownloadJournal.CHUNK_SIZE != 0;
+            }
+            assertTrue(resumed);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package app.seamlessupdate.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class UpdateOrchestratorTest {
+    private final List<Boolean> awake = new CopyOnWriteArrayList<>();
+    private final UpdateOrchestrator orchestrator = new UpdateOrchestrator(awake::add);
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    @After
+    public void tearDown() {
+        orchestrator.shutdown();
+    }
+
+    // runs an attempt that downloads until it's cancelled, waiting in awaitResume while paused
+    private UpdateOrchestrator.Control startDownload(final boolean background) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final UpdateOrchestrator.Control[] control = new UpdateOrchestrator.Control[1];
+        assertTrue(orchestrator.submit(c -> {
+            try {
+                c.enterPhase(Updater.Phase.DOWNLOAD);
+                if (background) {
+                    c.beginBackgroundWork();
+                }
+                control[0] = c;
+                started.countDown();
+                while (true) {
+                    try {
+                        Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                    } catch (InterruptedException e) {
+                        c.awaitResume();
+                    }
+                }
+            } catch (InterruptedIOException e) {
+                if (background) {
+                    c.endBackgroundWork();
+                }
+            }
+        }, finished::countDown));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        return control[0];
+    }
+
+    @Test
+    public void releasesWhilePaused() throws Exception {
+        startDownload(false);
+        assertTrue(orchestrator.pause());
+        assertTrue(orchestrator.resume());
+        orchestrator.cancel("test");
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertEquals(List.of(true, false, true, false), awake);
+    }
+
+    @Test
+    public void staysAwakeForBackgroundWork() throws Exception {
+        startDownload(true);
+        assertTrue(orchestrator.pause());
+        assertEquals(List.of(true), awake);
+        orchestrator.cancel("test");
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertEquals(List.of(true, false), awake);
+    }
+
+    @Test
+    public void endedAttemptIgnoresResume() throws Exception {
+        startDownload(false);
+        assertTrue(orchestrator.pause());
+        orchestrator.cancel("test");
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertFalse(orchestrator.resume());
+        assertEquals(List.of(true, false), awake);
+    }
+}
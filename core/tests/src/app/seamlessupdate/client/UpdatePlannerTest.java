@@ -0,0 +1,88 @@
+package app.seamlessupdate.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UpdatePlannerTest {
+    private File index;
+
+    @Before
+    public void setUp() throws IOException {
+        index = File.createTempFile("index", null);
+    }
+
+    @After
+    public void tearDown() {
+        index.delete();
+    }
+
+    private UpdatePlanner load(final String... lines) throws IOException {
+        Files.write(index.toPath(), String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+        try (final BufferedReader reader = Files.newBufferedReader(index.toPath())) {
+            return new UpdatePlanner(reader);
+        }
+    }
+
+    @Test
+    public void prefersChainOfIncrementalsOverLargerFull() throws IOException {
+        final UpdatePlanner planner = load(
+                "100 200 2000 30",
+                "200 300 3000 40",
+                "100 300 3000 100",
+                "full 300 3000 1000");
+        assertEquals("[100 -> 200 (30 bytes), 200 -> 300 (40 bytes)]",
+                planner.plan("100", 1000, "300", 3000).toString());
+    }
+
+    @Test
+    public void prefersFullWhenSmallerThanChain() throws IOException {
+        final UpdatePlanner planner = load(
+                "100 200 2000 600",
+                "200 300 3000 600",
+                "full 300 3000 1000");
+        final List<UpdatePlanner.Step> plan = planner.plan("100", 1000, "300", 3000);
+        assertEquals(1, plan.size());
+        assertTrue(plan.get(0).isFull());
+    }
+
+    @Test
+    public void neverStepsPastTargetOrBackwards() throws IOException {
+        final UpdatePlanner planner = load(
+                "100 400 4000 10",
+                "400 300 3000 10",
+                "100 050 500 1",
+                "050 300 3000 1",
+                "100 300 3000 50");
+        assertEquals("[100 -> 300 (50 bytes)]", planner.plan("100", 1000, "300", 3000).toString());
+    }
+
+    @Test
+    public void emptyPlanWithoutRouteToTarget() throws IOException {
+        final UpdatePlanner planner = load(
+                "",
+                "100 200 2000 30",
+                "full 300 2500 1000");
+        assertTrue(planner.plan("100", 1000, "300", 3000).isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsMalformedLine() throws IOException {
+        load("100 200 2000");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsMalformedNumber() throws IOException {
+        load("100 200 2000 big");
+    }
+}
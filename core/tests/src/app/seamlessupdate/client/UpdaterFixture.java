@@ -0,0 +1,219 @@
+package app.seamlessupdate.client;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// An Updater against a TestServer, with the platform replaced by maps and fakes. Attempts run
+// through an UpdateOrchestrator like in the app. Packages aren't signed, so the streaming
+// verification defers to the fake verifyPackage, which only counts calls.
+class UpdaterFixture implements AutoCloseable {
+    static final String CHANNEL = "stable";
+    static final String SOURCE_INCREMENTAL = "100";
+    static final long SOURCE_BUILD_DATE = 1000;
+
+    final TestServer server;
+    final File directory;
+    final File packageFile;
+    final Map<String, String> properties = new HashMap<>();
+    final Map<String, Object> preferences = Collections.synchronizedMap(new HashMap<>());
+    final List<String> applied = Collections.synchronizedList(new ArrayList<>());
+    final UpdateOrchestrator orchestrator = new UpdateOrchestrator();
+    volatile Updater.PayloadApplier applier = new Updater.PayloadApplier() {
+        @Override
+        public boolean applyPayload(final String url, final long offset, final long size,
+                final String[] headerKeyValuePairs, final UpdateOrchestrator.Control control) {
+            applied.add(url);
+            return true;
+        }
+
+        @Override
+        public Updater.Session reattach(final UpdateOrchestrator.Control control) {
+            return Updater.Session.NONE;
+        }
+    };
+    volatile int verifications;
+    volatile boolean downloadStarted;
+    volatile long downloaded;
+
+    UpdaterFixture() throws IOException {
+        server = new TestServer();
+        directory = Files.createTempDirectory("updater").toFile();
+        packageFile = new File(directory, "update.zip");
+        properties.put(Updater.PROPERTY_DEVICE, TestPackages.DEVICE);
+        properties.put(Updater.PROPERTY_INCREMENTAL, SOURCE_INCREMENTAL);
+        properties.put(Updater.PROPERTY_BUILD_DATE, Long.toString(SOURCE_BUILD_DATE));
+    }
+
+    static String fullPackage(final String incremental) {
+        return TestPackages.DEVICE + "-ota_update-" + incremental + ".zip";
+    }
+
+    static String incrementalPackage(final String source, final String target) {
+        return TestPackages.DEVICE + "-incremental-" + source + "-" + target + ".zip";
+    }
+
+    // makes the metadata of the channel point at the target
+    void publish(final String incremental, final long buildDate) {
+        server.put(TestPackages.DEVICE + "-" + CHANNEL, (incremental + " " + buildDate + " "
+                + TestPackages.DEVICE + " " + CHANNEL + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    void publishIndex(final String index) {
+        server.put(TestPackages.DEVICE + "-index", index.getBytes(StandardCharsets.UTF_8));
+    }
+
+    Updater createUpdater() {
+        return new Updater(directory, new Updater.Transport() {
+            @Override
+            public List<String> getMirrors() {
+                return Collections.singletonList(server.getUrl());
+            }
+
+            @Override
+            public HttpURLConnection open(final String url) throws IOException {
+                final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+                connection.setConnectTimeout(10000);
+                connection.setReadTimeout(10000);
+                return connection;
+            }
+
+            @Override
+            public List<String> getPayloadHeaders() {
+                return Collections.emptyList();
+            }
+        }, new Updater.PropertySource() {
+            @Override
+            public String get(final String key, final String def) {
+                return properties.getOrDefault(key, def);
+            }
+
+            @Override
+            public long getLong(final String key, final long def) {
+                final String value = properties.get(key);
+                return value == null ? def : Long.parseLong(value);
+            }
+
+            @Override
+            public boolean getBoolean(final String key, final boolean def) {
+                final String value = properties.get(key);
+                return value == null ? def : Boolean.parseBoolean(value);
+            }
+        }, new Updater.PreferencesStore() {
+            @Override
+            public String getString(final String key, final String defValue) {
+                final Object value = preferences.get(key);
+                return value == null ? defValue : (String) value;
+            }
+
+            @Override
+            public long getLong(final String key, final long defValue) {
+                final Object value = preferences.get(key);
+                return value == null ? defValue : (Long) value;
+            }
+
+            @Override
+            public void putString(final String key, final String value) {
+                if (value == null) {
+                    preferences.remove(key);
+                } else {
+                    preferences.put(key, value);
+                }
+            }
+
+            @Override
+            public void putLong(final String key, final long value) {
+                preferences.put(key, value);
+            }
+        }, new Updater.PayloadApplier() {
+            @Override
+            public boolean applyPayload(final String url, final long offset, final long size,
+                    final String[] headerKeyValuePairs, final UpdateOrchestrator.Control control) {
+                return applier.applyPayload(url, offset, size, headerKeyValuePairs, control);
+            }
+
+            @Override
+            public Updater.Session reattach(final UpdateOrchestrator.Control control) {
+                return applier.reattach(control);
+            }
+        }, (file, listener) -> verifications++, (fd, length) -> {}, new Updater.Listener() {
+            @Override
+            public void onUpToDate(final String channel) {}
+
+            @Override
+            public void onDownloadStart(final File file, final long downloaded, final long contentLength) {
+                downloadStarted = true;
+            }
+
+            @Override
+            public void onDownloadProgress(final long downloaded, final long contentLength) {
+                UpdaterFixture.this.downloaded = downloaded;
+            }
+
+            @Override
+            public void onVerifyProgress(final int progress) {}
+        }, new UpdateMetrics(new File(directory, "metrics"), "test"), null) {
+            @Override
+            PackageVerifier createVerifier(final long contentLength) throws GeneralSecurityException {
+                return new PackageVerifier(packageFile, contentLength) {
+                    @Override
+                    boolean finish() {
+                        cancel();
+                        return false;
+                    }
+                };
+            }
+        };
+    }
+
+    // Starts an attempt, returning what waits for it to end and rethrows what it failed with.
+    Callable<Updater.Result> start(final Updater updater, final boolean install) {
+        final Object[] outcome = new Object[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        assertTrue(orchestrator.submit(control -> {
+            try {
+                outcome[0] = updater.run(CHANNEL, false, install, control);
+            } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                outcome[0] = e;
+            }
+        }, done::countDown));
+        return () -> {
+            assertTrue("attempt timed out", done.await(2, TimeUnit.MINUTES));
+            if (outcome[0] instanceof Exception) {
+                throw (Exception) outcome[0];
+            }
+            return (Updater.Result) outcome[0];
+        };
+    }
+
+    Updater.Result run(final Updater updater, final boolean install) throws Exception {
+        return start(updater, install).call();
+    }
+
+    @Override
+    public void close() {
+        orchestrator.shutdown();
+        server.close();
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
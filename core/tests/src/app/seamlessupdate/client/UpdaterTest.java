@@ -0,0 +1,318 @@
+package app.seamlessupdate.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UpdaterTest {
+    private static final String TARGET = "200";
+    private static final long TARGET_BUILD_DATE = 2000;
+
+    private UpdaterFixture fixture;
+
+    @Before
+    public void setUp() throws IOException {
+        fixture = new UpdaterFixture();
+    }
+
+    @After
+    public void tearDown() {
+        fixture.close();
+    }
+
+    private byte[] publishFull(final long seed) throws IOException {
+        final byte[] content = TestPackages.createPackage(TARGET_BUILD_DATE,
+                TestPackages.random(3 * 1024 * 1024, seed));
+        fixture.server.put(UpdaterFixture.fullPackage(TARGET), content);
+        fixture.publish(TARGET, TARGET_BUILD_DATE);
+        return content;
+    }
+
+    private boolean requested(final String method, final String path) {
+        for (final String request : fixture.server.getRequestLog()) {
+            if (request.startsWith(method + " " + path + " ")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void upToDate() throws Exception {
+        fixture.publish(UpdaterFixture.SOURCE_INCREMENTAL, UpdaterFixture.SOURCE_BUILD_DATE);
+        assertEquals(Updater.Result.NONE, fixture.run(fixture.createUpdater(), false));
+    }
+
+    @Test
+    public void recordsNextCheckHint() throws Exception {
+        fixture.publish(UpdaterFixture.SOURCE_INCREMENTAL, UpdaterFixture.SOURCE_BUILD_DATE);
+        final String metadata = TestPackages.DEVICE + "-" + UpdaterFixture.CHANNEL;
+        // a CDN's default freshness lifetime isn't taken as a hint
+        fixture.server.setHeader(metadata, "Cache-Control", "max-age=60");
+        fixture.run(fixture.createUpdater(), false);
+        assertEquals(-1L, fixture.preferences.get(Updater.PREFERENCE_CHECK_HINT));
+        fixture.server.setHeader(metadata, PollingPolicy.NEXT_CHECK_HEADER, "43200");
+        fixture.run(fixture.createUpdater(), false);
+        assertEquals(TimeUnit.HOURS.toMillis(12), fixture.preferences.get(Updater.PREFERENCE_CHECK_HINT));
+    }
+
+    @Test
+    public void rejectsMalformedMetadata() throws Exception {
+        final String metadata = TestPackages.DEVICE + "-" + UpdaterFixture.CHANNEL;
+        for (final String line : new String[] { "", TARGET + "\n", TARGET + " soon " + TestPackages.DEVICE
+                + " " + UpdaterFixture.CHANNEL + "\n" }) {
+            fixture.server.put(metadata, line.getBytes(StandardCharsets.UTF_8));
+            try {
+                fixture.run(fixture.createUpdater(), false);
+                fail("malformed metadata accepted: " + line);
+            } catch (IOException e) {
+                assertTrue(e.getMessage().startsWith("malformed metadata"));
+            }
+        }
+    }
+
+    @Test
+    public void downloadsFullPackage() throws Exception {
+        final byte[] content = publishFull(1);
+        assertEquals(Updater.Result.READY, fixture.run(fixture.createUpdater(), false));
+        assertArrayEquals(content, Files.readAllBytes(fixture.packageFile.toPath()));
+        assertEquals(1, fixture.verifications);
+    }
+
+    @Test
+    public void installsVerifiedPackageWithoutVerifyingAgain() throws Exception {
+        publishFull(9);
+        assertEquals(Updater.Result.READY, fixture.run(fixture.createUpdater(), false));
+        final int requests = fixture.server.getRequestCount();
+        assertEquals(Updater.Result.INSTALLED, fixture.run(fixture.createUpdater(), true));
+        assertEquals(1, fixture.verifications);
+        assertEquals(1, fixture.applied.size());
+        assertEquals(requests, fixture.server.getRequestCount());
+    }
+
+    @Test
+    public void refetchesVerifiedPackageCorruptedSince() throws Exception {
+        final byte[] content = publishFull(10);
+        assertEquals(Updater.Result.READY, fixture.run(fixture.createUpdater(), false));
+        // outside of what identifies the file for the verification cache
+        try (final RandomAccessFile file = new RandomAccessFile(fixture.packageFile, "rw")) {
+            final long modified = fixture.packageFile.lastModified();
+            file.seek(1024 * 1024);
+            file.write(~file.read());
+            fixture.packageFile.setLastModified(modified);
+        }
+        final long fetched = requestedBytes(UpdaterFixture.fullPackage(TARGET));
+        assertEquals(Updater.Result.INSTALLED, fixture.run(fixture.createUpdater(), true));
+        // the journal finds the chunk corrupt, so it's downloaded and verified again
+        assertTrue(requestedBytes(UpdaterFixture.fullPackage(TARGET)) - fetched >= content.length);
+        assertEquals(2, fixture.verifications);
+        assertEquals(1, fixture.applied.size());
+    }
+
+    @Test
+    public void fallsBackToFullWithoutIncremental() throws Exception {
+        final byte[] content = publishFull(2);
+        assertEquals(Updater.Result.READY, fixture.run(fixture.createUpdater(), false));
+        assertTrue(requested("HEAD", UpdaterFixture.incrementalPackage(UpdaterFixture.SOURCE_INCREMENTAL, TARGET)));
+        assertArrayEquals(content, Files.readAllBytes(fixture.packageFile.toPath()));
+    }
+
+    @Test
+    public void fallsBackToFullWhenPlannedIncrementalIsMissing() throws Exception {
+        final byte[] content = publishFull(3);
+        // the index lists an incremental that never made it to the server
+        fixture.publishIndex(UpdaterFixture.SOURCE_INCREMENTAL + " " + TARGET + " " + TARGET_BUILD_DATE + " 100\n"
+                + "full " + TARGET + " " + TARGET_BUILD_DATE + " " + content.length + "\n");
+        assertEquals(Updater.Result.READY, fixture.run(fixture.createUpdater(), false));
+        assertTrue(requested("HEAD", UpdaterFixture.incrementalPackage(UpdaterFixture.SOURCE_INCREMENTAL, TARGET)));
+        assertArrayEquals(content, Files.readAllBytes(fixture.packageFile.toPath()));
+        assertEquals(TARGET_BUILD_DATE, fixture.preferences.get(Updater.PREFERENCE_PACKAGE_BUILD_DATE));
+    }
+
+    @Test
+    public void downloadsPlannedIncremental() throws Exception {
+        publishFull(4);
+        final byte[] incremental = TestPackages.createPackage(TARGET_BUILD_DATE, TestPackages.random(64 * 1024, 5));
+        fixture.server.put(UpdaterFixture.incrementalPackage(UpdaterFixture.SOURCE_INCREMENTAL, TARGET), incremental);
+        fixture.publishIndex(UpdaterFixture.SOURCE_INCREMENTAL + " " + TARGET + " " + TARGET_BUILD_DATE + " "
+                + incremental.length + "\n");
+        assertEquals(Updater.Result.READY, fixture.run(fixture.createUpdater(), false));
+        assertArrayEquals(incremental, Files.readAllBytes(fixture.packageFile.toPath()));
+    }
+
+    private static boolean isDownloadRunning() {
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("download") && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] fetch(final String url) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setReadTimeout(30000);
+        try (final InputStream input = connection.getInputStream()) {
+            return input.readAllBytes();
+        }
+    }
+
+    @Test
+    public void installsWhileDownloading() throws Exception {
+        final byte[] payload = TestPackages.random(3 * 1024 * 1024, 6);
+        fixture.server.put(UpdaterFixture.fullPackage(TARGET), TestPackages.createPackage(TARGET_BUILD_DATE, payload));
+        fixture.publish(TARGET, TARGET_BUILD_DATE);
+        fixture.properties.put(Updater.PROPERTY_OVERLAP_INSTALL, "true");
+        // slow enough that update_engine starts well before the download is done
+        fixture.server.setBytesPerSecond(4 * 1024 * 1024);
+        final byte[][] applied = new byte[1][];
+        fixture.applier = new Updater.PayloadApplier() {
+            @Override
+            public boolean applyPayload(final String url, final long offset, final long size,
+                    final String[] headerKeyValuePairs, final UpdateOrchestrator.Control control) {
+                try {
+                    applied[0] = fetch(url);
+                    return true;
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+
+            @Override
+            public Updater.Session reattach(final UpdateOrchestrator.Control control) {
+                return Updater.Session.NONE;
+            }
+        };
+        assertEquals(Updater.Result.INSTALLED, fixture.run(fixture.createUpdater(), true));
+        assertArrayEquals(payload, applied[0]);
+        assertFalse(fixture.packageFile.exists());
+    }
+
+    @Test
+    public void stopsDownloadWhenOverlappedInstallIsCancelled() throws Exception {
+        final byte[] payload = TestPackages.random(8 * 1024 * 1024, 7);
+        fixture.server.put(UpdaterFixture.fullPackage(TARGET), TestPackages.createPackage(TARGET_BUILD_DATE, payload));
+        fixture.publish(TARGET, TARGET_BUILD_DATE);
+        fixture.properties.put(Updater.PROPERTY_OVERLAP_INSTALL, "true");
+        fixture.server.setBytesPerSecond(1024 * 1024);
+        fixture.applier = new Updater.PayloadApplier() {
+            @Override
+            public boolean applyPayload(final String url, final long offset, final long size,
+                    final String[] headerKeyValuePairs, final UpdateOrchestrator.Control control) {
+                control.cancel("test");
+                return false;
+            }
+
+            @Override
+            public Updater.Session reattach(final UpdateOrchestrator.Control control) {
+                return Updater.Session.NONE;
+            }
+        };
+        try {
+            fixture.run(fixture.createUpdater(), true);
+            fail("cancellation not reported");
+        } catch (InterruptedIOException e) {
+            // expected
+        }
+        assertFalse("download outlived the attempt", isDownloadRunning());
+        // kept for the next attempt to resume
+        assertTrue(fixture.packageFile.exists());
+    }
+
+    @Test
+    public void pausesCheckAtStartOfTransfer() throws Exception {
+        final byte[] content = publishFull(8);
+        // keeps the attempt in the check long enough to pause it there
+        fixture.server.setLatencyMillis(500);
+        final Callable<Updater.Result> attempt = fixture.start(fixture.createUpdater(), false);
+        while (fixture.server.getRequestCount() == 0) {
+            Thread.sleep(10);
+        }
+        assertTrue(fixture.orchestrator.pause());
+        fixture.server.setLatencyMillis(0);
+        while (!fixture.downloadStarted) {
+            Thread.sleep(10);
+        }
+        // the pause holds the attempt at the start of the transfer rather than failing it
+        Thread.sleep(500);
+        assertTrue(fixture.orchestrator.isRunning());
+        assertEquals(0, fixture.downloaded);
+        assertTrue(fixture.orchestrator.resume());
+        assertEquals(Updater.Result.READY, attempt.call());
+        assertArrayEquals(content, Files.readAllBytes(fixture.packageFile.toPath()));
+    }
+
+    @Test
+    public void installsWhenInstallRequestJoinsPrefetch() throws Exception {
+        publishFull(12);
+        // keeps the prefetch downloading long enough for the request to join it
+        fixture.server.setBytesPerSecond(1024 * 1024);
+        final Callable<Updater.Result> attempt = fixture.start(fixture.createUpdater(), false);
+        while (!fixture.downloadStarted) {
+            Thread.sleep(10);
+        }
+        assertFalse(fixture.orchestrator.submit(control -> fail("request not coalesced"), true, false, () -> {}));
+        fixture.server.setBytesPerSecond(0);
+        assertEquals(Updater.Result.INSTALLED, attempt.call());
+        assertEquals(1, fixture.applied.size());
+    }
+
+    // bytes of the package requested with ranges, leaving out HEAD requests
+    private long requestedBytes(final String path) {
+        long bytes = 0;
+        for (final String request : fixture.server.getRequestLog()) {
+            if (!request.startsWith("GET " + path + " bytes=")) {
+                continue;
+            }
+            final String range = request.substring(request.indexOf('=') + 1);
+            final int dash = range.indexOf('-');
+            if (dash == 0) {
+                bytes += Long.parseLong(range.substring(1));
+            } else {
+                bytes += Long.parseLong(range.substring(dash + 1)) - Long.parseLong(range.substring(0, dash)) + 1;
+            }
+        }
+        return bytes;
+    }
+
+    @Test
+    public void reusesBlocksOfStalePackage() throws Exception {
+        final byte[] stalePayload = TestPackages.random(2 * DownloadJournal.CHUNK_SIZE, 10);
+        final byte[] payload = stalePayload.clone();
+        // the new build changes a stretch in the middle of the payload
+        System.arraycopy(TestPackages.random(512 * 1024, 11), 0, payload, DownloadJournal.CHUNK_SIZE, 512 * 1024);
+        Files.write(fixture.packageFile.toPath(), TestPackages.createPackage(TARGET_BUILD_DATE - 1, stalePayload));
+
+        final String path = UpdaterFixture.fullPackage(TARGET);
+        final byte[] content = TestPackages.createPackage(TARGET_BUILD_DATE, payload);
+        fixture.server.put(path, content);
+        fixture.server.put(path + BlockReuse.BLOCK_MAP_SUFFIX, TestPackages.blockMap(content, 64 * 1024));
+        fixture.publish(TARGET, TARGET_BUILD_DATE);
+
+        assertEquals(Updater.Result.READY, fixture.run(fixture.createUpdater(), false));
+        assertArrayEquals(content, Files.readAllBytes(fixture.packageFile.toPath()));
+        assertTrue(requested("GET", path + BlockReuse.BLOCK_MAP_SUFFIX));
+        // the changed stretch and the metadata at the end, with the pre-download metadata check
+        final long fetched = requestedBytes(path);
+        assertTrue("fetched " + fetched + " bytes", fetched < 2 * 1024 * 1024);
+        assertFalse(new File(fixture.directory, "update.zip.stale").exists());
+    }
+}
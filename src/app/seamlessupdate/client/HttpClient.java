@@ -0,0 +1,49 @@
+package app.seamlessupdate.client;
+
+import android.net.Network;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import javax.net.ssl.HttpsURLConnection;
+
+// Requests to the update server mirrors over one Network for the length of an attempt. The network keeps
+// released connections alive for the following requests, and all of them share one
+// CountingSocketFactory so its connections are pooled together and sessions from earlier
+// handshakes are resumed.
+class HttpClient {
+    private static final int CONNECT_TIMEOUT = 30000;
+    private static final int READ_TIMEOUT = 30000;
+
+    private final Network network;
+    private final CountingSocketFactory socketFactory =
+            new CountingSocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory());
+
+    HttpClient(final Network network) {
+        this.network = network;
+    }
+
+    HttpURLConnection open(final String url) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) network.openConnection(new URL(url));
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        if (connection instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) connection).setSSLSocketFactory(socketFactory);
+        }
+        socketFactory.onRequest(url);
+        return connection;
+    }
+
+    int getRequests() {
+        return socketFactory.getRequests();
+    }
+
+    int getConnections() {
+        return socketFactory.getConnections();
+    }
+
+    int getResumedSessions() {
+        return socketFactory.getResumedSessions();
+    }
+}
@@ -7,11 +7,18 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
 import android.graphics.drawable.Icon;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.text.Html;
 import android.text.Spanned;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static android.app.NotificationManager.IMPORTANCE_HIGH;
 import static android.app.NotificationManager.IMPORTANCE_LOW;
@@ -32,9 +39,30 @@ public class NotificationHandler {
     private static final String NOTIFICATION_CHANNEL_ID_UPDATED = "updated";
     private static final int PENDING_REBOOT_ID = 1;
     private static final int PENDING_SETTINGS_ID = 2;
+    private static final int PENDING_PAUSE_ID = 3;
+    private static final int PENDING_RESUME_ID = 4;
+    private static final int PENDING_CANCEL_ID = 5;
+    static final String ACTION_PAUSE = "app.seamlessupdate.client.action.PAUSE";
+    static final String ACTION_RESUME = "app.seamlessupdate.client.action.RESUME";
+    static final String ACTION_CANCEL = "app.seamlessupdate.client.action.CANCEL";
+    private static final long DEFAULT_PROGRESS_INTERVAL_MILLIS = 1000;
+    private static final int INDETERMINATE = -1;
 
     private final Service service;
     private final NotificationManager notificationManager;
+    private final long progressIntervalMillis;
+
+    // Progress updates only record the latest state, which the handler thread posts at most once
+    // per interval and only when it differs from what is shown. Callers never wait for
+    // system_server.
+    private final HandlerThread thread = new HandlerThread("NotificationHandler");
+    private final Handler handler;
+    private final ProgressThrottle progressThrottle;
+    // reused for each title, only touched on the handler thread
+    private final Map<Integer, Notification.Builder> progressBuilders = new HashMap<>();
+    // serializes posting progress with stopping the foreground service
+    private final Object postLock = new Object();
+    private boolean progressShown;
 
     private Phase phase;
 
@@ -60,29 +88,112 @@ public class NotificationHandler {
                 service.getString(R.string.notification_channel_updated), IMPORTANCE_MIN));
 
         notificationManager.createNotificationChannels(channels);
+
+        progressIntervalMillis = SystemProperties.getLong("sys.update.notification_interval_ms",
+                DEFAULT_PROGRESS_INTERVAL_MILLIS);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        progressThrottle = new ProgressThrottle(new ProgressThrottle.Scheduler() {
+            @Override
+            public long now() {
+                return SystemClock.elapsedRealtime();
+            }
+
+            @Override
+            public void schedule(final Runnable task, final long delayMillis) {
+                handler.postDelayed(task, delayMillis);
+            }
+
+            @Override
+            public void cancel(final Runnable task) {
+                handler.removeCallbacks(task);
+            }
+        }, this::postProgress, progressIntervalMillis);
     }
 
-    private Notification buildProgressNotification(int resId, long progress, long max) {
-        Notification.Builder builder = new Notification.Builder(service, NOTIFICATION_CHANNEL_ID_PROGRESS)
-                .setContentIntent(getPendingSettingsIntent())
-                .setContentTitle(service.getString(resId))
-                .setForegroundServiceBehavior(Notification.FOREGROUND_SERVICE_IMMEDIATE)
-                .setOngoing(true)
-                .setOnlyAlertOnce(true)
-                .setSmallIcon(R.drawable.system_update_fill0_wght400_grad0_opsz48);
-        if (max <= 0) {
+    void destroy() {
+        thread.quitSafely();
+    }
+
+    private Notification buildProgressNotification(int resId, int progress, boolean paused) {
+        Notification.Builder builder = progressBuilders.get(resId);
+        if (builder == null) {
+            builder = new Notification.Builder(service, NOTIFICATION_CHANNEL_ID_PROGRESS)
+                    .setContentIntent(getPendingSettingsIntent())
+                    .setContentTitle(service.getString(resId))
+                    .setForegroundServiceBehavior(Notification.FOREGROUND_SERVICE_IMMEDIATE)
+                    .setOngoing(true)
+                    .setOnlyAlertOnce(true)
+                    .setSmallIcon(R.drawable.system_update_fill0_wght400_grad0_opsz48);
+            progressBuilders.put(resId, builder);
+        }
+        if (progress == INDETERMINATE) {
             builder.setProgress(0, 0, true);
         } else {
-            double fraction = (double) progress / (double) max;
-            int maxScaled = 100;
-            int progressScaled = (int) (fraction * (double) maxScaled);
-            builder.setProgress(maxScaled, progressScaled, false);
+            builder.setProgress(100, progress, false);
+        }
+        builder.setContentText(paused ? service.getString(R.string.notification_paused_text) : null);
+
+        final Notification.Action cancel = buildAction(R.drawable.close_fill0_wght400_grad0_opsz48,
+                R.string.notification_cancel_action, PENDING_CANCEL_ID, ACTION_CANCEL);
+        if (paused) {
+            builder.setActions(buildAction(R.drawable.play_arrow_fill0_wght400_grad0_opsz48,
+                    R.string.notification_resume_action, PENDING_RESUME_ID, ACTION_RESUME), cancel);
+        } else if (resId == R.string.notification_verify_title) {
+            // verification is local and short, so it can only be cancelled
+            builder.setActions(cancel);
+        } else {
+            builder.setActions(buildAction(R.drawable.pause_fill0_wght400_grad0_opsz48,
+                    R.string.notification_pause_action, PENDING_PAUSE_ID, ACTION_PAUSE), cancel);
         }
         return builder.build();
     }
 
+    private Notification.Action buildAction(final int iconResId, final int titleResId,
+            final int requestCode, final String action) {
+        final PendingIntent intent = PendingIntent.getService(service, requestCode,
+                new Intent(service, service.getClass()).setAction(action), PendingIntent.FLAG_IMMUTABLE);
+        return new Notification.Action.Builder(
+                Icon.createWithResource(service.getApplication(), iconResId),
+                service.getString(titleResId),
+                intent).build();
+    }
+
+    private void updateProgress(final int resId, final int progress) {
+        progressThrottle.update(resId, progress);
+    }
+
+    private void postProgress(final int resId, final int progress, final boolean paused) {
+        synchronized (postLock) {
+            if (progressShown) {
+                notificationManager.notify(NOTIFICATION_ID_PROGRESS, buildProgressNotification(resId, progress, paused));
+            }
+        }
+    }
+
+    void setPaused(final boolean paused) {
+        progressThrottle.setPaused(paused);
+    }
+
+    private static int scale(final long progress, final long max) {
+        if (max <= 0) {
+            return INDETERMINATE;
+        }
+        return (int) ((double) progress / (double) max * 100);
+    }
+
+    void dump(final PrintWriter writer) {
+        writer.println("progress notifications posted: " + progressThrottle.getPosted());
+        writer.println("progress notifications suppressed: " + progressThrottle.getSuppressed());
+    }
+
     void start() {
         phase = Phase.CHECK;
+        // the check notification started below is shown until the first progress update
+        progressThrottle.reset();
+        synchronized (postLock) {
+            progressShown = true;
+        }
         notificationManager.cancelAll();
         service.startForeground(NOTIFICATION_ID_PROGRESS, new Notification.Builder(service, NOTIFICATION_CHANNEL_ID_PROGRESS)
                 .setContentIntent(getPendingSettingsIntent())
@@ -116,34 +227,33 @@ public class NotificationHandler {
 
     void showDownloadNotification(long progress, long max) {
         phase = Phase.DOWNLOAD;
-        notificationManager.notify(NOTIFICATION_ID_PROGRESS,
-                buildProgressNotification(R.string.notification_download_title, progress, max));
+        updateProgress(R.string.notification_download_title, scale(progress, max));
     }
 
     void showVerifyNotification(int progress) {
         phase = Phase.VERIFY;
-        notificationManager.notify(NOTIFICATION_ID_PROGRESS,
-                buildProgressNotification(R.string.notification_verify_title, progress, 100));
+        updateProgress(R.string.notification_verify_title, scale(progress, 100));
     }
 
     void showInstallNotification(int progress) {
         phase = Phase.INSTALL;
-        notificationManager.notify(NOTIFICATION_ID_PROGRESS,
-                buildProgressNotification(R.string.notification_install_title, progress, 100));
+        updateProgress(R.string.notification_install_title, scale(progress, 100));
     }
 
     void showValidateNotification(int progress) {
-        notificationManager.notify(NOTIFICATION_ID_PROGRESS,
-                buildProgressNotification(R.string.notification_validate_title, progress, 100));
+        updateProgress(R.string.notification_validate_title, scale(progress, 100));
     }
 
     void showFinalizeNotification(int progress) {
-        notificationManager.notify(NOTIFICATION_ID_PROGRESS,
-                buildProgressNotification(R.string.notification_finalize_title, progress, 100));
+        updateProgress(R.string.notification_finalize_title, scale(progress, 100));
     }
 
     void cancelProgressNotification() {
-        service.stopForeground(true);
+        progressThrottle.cancel();
+        synchronized (postLock) {
+            progressShown = false;
+            service.stopForeground(true);
+        }
     }
 
     void showRebootNotification() {
@@ -7,8 +7,10 @@ import android.app.job.JobService;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.net.Network;
 import android.os.PersistableBundle;
+import android.os.PowerManager;
 import android.os.SystemProperties;
 import android.util.Log;
 
@@ -18,11 +20,29 @@ public class PeriodicJob extends JobService {
     private static final String TAG = "PeriodicJob";
     private static final int JOB_ID_PERIODIC = 1;
     private static final int JOB_ID_RETRY = 2;
-    private static final long INTERVAL_MILLIS = 4 * 60 * 60 * 1000;
+    private static final int JOB_ID_INSTALL = 3;
     private static final long MIN_LATENCY_MILLIS = 4 * 60 * 1000;
+    private static final long THERMAL_DEFERRAL_MILLIS = 30 * 60 * 1000;
     private static final String EXTRA_JOB_CHANNEL = "extra_job_channel";
 
+    private static long getIntervalMillis(final SharedPreferences preferences) {
+        final PollingPolicy policy = new PollingPolicy(
+                (int) preferences.getLong(Updater.PREFERENCE_EMPTY_CHECKS, 0),
+                preferences.getLong(Updater.PREFERENCE_CHECK_HINT, -1),
+                PollingPolicy.parseReleases(preferences.getString(Updater.PREFERENCE_RELEASES, null)));
+        return policy.getIntervalMillis(System.currentTimeMillis());
+    }
+
+    // a check plus whatever remains of a download that was started
+    private static long getEstimatedDownloadBytes(final SharedPreferences preferences) {
+        return PollingPolicy.CHECK_BYTES + preferences.getLong(Updater.PREFERENCE_PENDING_BYTES, 0);
+    }
+
+    // Called again after each attempt so the interval follows the polling policy.
     static void schedule(final Context context) {
+        final SharedPreferences preferences = Settings.getPreferences(context);
+        final long intervalMillis = getIntervalMillis(preferences);
+        final long downloadBytes = getEstimatedDownloadBytes(preferences);
         final String channel = SystemProperties.get("sys.update.channel", Settings.getChannel(context));
         final int networkType = Settings.getNetworkType(context);
         final boolean batteryNotLow = Settings.getBatteryNotLow(context);
@@ -34,11 +54,13 @@ public class PeriodicJob extends JobService {
                 jobInfo.isRequireBatteryNotLow() == batteryNotLow &&
                 jobInfo.isRequireCharging() == requiresCharging &&
                 jobInfo.isPersisted() &&
-                jobInfo.getIntervalMillis() == INTERVAL_MILLIS &&
+                jobInfo.getIntervalMillis() == intervalMillis &&
+                jobInfo.getEstimatedNetworkDownloadBytes() == downloadBytes &&
                 Objects.equals(jobInfo.getExtras().getString(EXTRA_JOB_CHANNEL), channel)) {
             Log.d(TAG, "Periodic job already registered");
             return;
         }
+        Log.d(TAG, "Scheduling periodic job every " + intervalMillis + " ms");
         final PersistableBundle extras = new PersistableBundle();
         extras.putString(EXTRA_JOB_CHANNEL, channel);
         final ComponentName serviceName = new ComponentName(context, PeriodicJob.class);
@@ -47,7 +69,8 @@ public class PeriodicJob extends JobService {
             .setRequiresBatteryNotLow(batteryNotLow)
             .setRequiresCharging(requiresCharging)
             .setPersisted(true)
-            .setPeriodic(INTERVAL_MILLIS)
+            .setPeriodic(intervalMillis)
+            .setEstimatedNetworkBytes(downloadBytes, JobInfo.NETWORK_BYTES_UNKNOWN)
             .setExtras(extras)
             .build());
         if (result == JobScheduler.RESULT_FAILURE) {
@@ -63,28 +86,80 @@ public class PeriodicJob extends JobService {
             .setRequiresBatteryNotLow(Settings.getBatteryNotLow(context))
             .setRequiresCharging(Settings.getRequiresCharging(context))
             .setMinimumLatency(MIN_LATENCY_MILLIS)
+            .setEstimatedNetworkBytes(getEstimatedDownloadBytes(Settings.getPreferences(context)),
+                    JobInfo.NETWORK_BYTES_UNKNOWN)
             .build());
         if (result == JobScheduler.RESULT_FAILURE) {
             Log.d(TAG, "Retry job schedule failed");
         }
     }
 
+    // Streaming and overlap installs download while applying, so only they need the network.
+    private static boolean installNeedsNetwork(final Context context) {
+        return SystemProperties.getBoolean("sys.update.streaming_test", Settings.getStreaming(context)) ||
+                SystemProperties.getBoolean(Updater.PROPERTY_OVERLAP_INSTALL, false);
+    }
+
+    // The periodic and retry jobs only prefetch and this applies the update once it's ready,
+    // under its own constraints.
+    static void scheduleInstall(final Context context) {
+        scheduleInstall(context, 0);
+    }
+
+    private static void scheduleInstall(final Context context, final long minLatencyMillis) {
+        final JobScheduler scheduler = context.getSystemService(JobScheduler.class);
+        final ComponentName serviceName = new ComponentName(context, PeriodicJob.class);
+        final boolean needsNetwork = installNeedsNetwork(context);
+        final JobInfo.Builder builder = new JobInfo.Builder(JOB_ID_INSTALL, serviceName)
+            .setRequiresBatteryNotLow(Settings.getBatteryNotLow(context))
+            .setRequiresCharging(Settings.getInstallRequiresCharging(context))
+            .setRequiresDeviceIdle(Settings.getInstallRequiresIdle(context))
+            .setRequiresStorageNotLow(true)
+            .setMinimumLatency(minLatencyMillis)
+            .setPersisted(true);
+        if (needsNetwork) {
+            builder.setRequiredNetworkType(Settings.getNetworkType(context))
+                .setEstimatedNetworkBytes(getEstimatedDownloadBytes(Settings.getPreferences(context)),
+                        JobInfo.NETWORK_BYTES_UNKNOWN);
+        }
+        final int result = scheduler.schedule(builder.build());
+        if (result == JobScheduler.RESULT_FAILURE) {
+            Log.d(TAG, "Install job schedule failed");
+        }
+    }
+
+    // applies changed install constraints to a pending install job
+    static void updateInstall(final Context context) {
+        if (context.getSystemService(JobScheduler.class).getPendingJob(JOB_ID_INSTALL) != null) {
+            scheduleInstall(context);
+        }
+    }
+
     static void cancel(final Context context) {
         final JobScheduler scheduler = context.getSystemService(JobScheduler.class);
         scheduler.cancel(JOB_ID_PERIODIC);
         scheduler.cancel(JOB_ID_RETRY);
+        scheduler.cancel(JOB_ID_INSTALL);
     }
 
     @Override
     public boolean onStartJob(final JobParameters params) {
         Log.d(TAG, "onStartJob id: " + params.getJobId());
+        final boolean install = params.getJobId() == JOB_ID_INSTALL;
         final Network network = params.getNetwork();
-        if (network == null) {
+        if (network == null && (!install || installNeedsNetwork(this))) {
             Log.e(TAG, "JobParameters have a null Network");
             return false;
         }
+        if (install && getSystemService(PowerManager.class).getCurrentThermalStatus() >= PowerManager.THERMAL_STATUS_MODERATE) {
+            // there's no job constraint for thermal headroom
+            Log.d(TAG, "Deferring install job until the device has cooled down");
+            scheduleInstall(this, THERMAL_DEFERRAL_MILLIS);
+            return false;
+        }
         final Intent intent = new Intent(this, Service.class);
         intent.putExtra(Service.INTENT_EXTRA_NETWORK, network);
+        intent.putExtra(Service.INTENT_EXTRA_INSTALL, install);
         startForegroundService(intent);
         return false;
     }
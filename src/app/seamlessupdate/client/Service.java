@@ -1,13 +1,14 @@
 package app.seamlessupdate.client;
 
-import static android.os.Build.DEVICE;
-import static android.os.Build.FINGERPRINT;
 import static android.os.Build.VERSION.INCREMENTAL;
 
-import android.app.IntentService;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.Network;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
 import android.os.RecoverySystem;
@@ -20,187 +21,318 @@ import android.os.UpdateEngineCallback;
 import android.os.storage.StorageManager;
 import android.util.Log;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.FileDescriptor;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.file.Files;
 import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.concurrent.TimeUnit;
 
-import libcore.io.IoUtils;
-
-public class Service extends IntentService {
+public class Service extends android.app.Service {
     private static final String TAG = "Service";
     static final String INTENT_EXTRA_NETWORK = "network";
     static final String INTENT_EXTRA_IS_USER_INITIATED = "is_user_initiated";
-    private static final int CONNECT_TIMEOUT = 30000;
-    private static final int READ_TIMEOUT = 30000;
-    private static final File CARE_MAP_PATH = new File("/data/ota_package/care_map.pb");
-    private static final File UPDATE_PATH = new File("/data/ota_package/update.zip");
-    private static final String PREFERENCE_DOWNLOAD_FILE = "download_file";
-    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    // false for a prefetch, which stops once the update is ready to install
+    static final String INTENT_EXTRA_INSTALL = "install";
+    private static final File PACKAGE_DIRECTORY = new File("/data/ota_package");
+    private static final String METRICS_FILE = "update_metrics";
+    private static final String CANCELLED_BY_USER = "cancelled by user";
+    // below this without charging the attempt is paced as if the device were hot
+    private static final int LOW_BATTERY_PERCENT = 15;
+    private static final long PACING_POLL_MILLIS = 10000;
+
+    // Start IDs handled by one attempt, including the requests coalesced into it. Only used on the
+    // main thread, where the start IDs are delivered.
+    private static class StartIds {
+        int last;
+
+        StartIds(final int startId) {
+            last = startId;
+        }
+    }
 
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private WakeLock wakeLock;
+    // each attempt holds the wake lock once, and only while it has work running
+    private final UpdateOrchestrator orchestrator = new UpdateOrchestrator(awake -> {
+        Log.d(TAG, (awake ? "acquire" : "release") + " wake lock");
+        if (awake) {
+            wakeLock.acquire();
+        } else {
+            wakeLock.release();
+        }
+    });
     private NotificationHandler notificationHandler;
-    private boolean mUpdating = false;
-
-    public Service() {
-        super(TAG);
-    }
+    private UpdateMetrics metrics;
+    private Pacer pacer;
+    // the latest attempt, which may have finished already
+    private StartIds attemptStartIds;
 
     @Override
     public void onCreate() {
         super.onCreate();
         notificationHandler = new NotificationHandler(this);
+        wakeLock = getSystemService(PowerManager.class).newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "Updater:" + TAG);
+        app.seamlessupdate.client.Log.setSink((priority, tag, msg, tr) ->
+                Log.println(priority, tag, tr == null ? msg : msg + '\n' + Log.getStackTraceString(tr)));
     }
 
-    private HttpURLConnection fetchData(final Network network, final String path) throws IOException {
-        final URL url = new URL(getString(R.string.url) + path);
-        final HttpURLConnection urlConnection = (HttpURLConnection) network.openConnection(url);
-        urlConnection.setConnectTimeout(CONNECT_TIMEOUT);
-        urlConnection.setReadTimeout(READ_TIMEOUT);
-        return urlConnection;
+    @Override
+    public void onDestroy() {
+        orchestrator.shutdown();
+        notificationHandler.destroy();
+        super.onDestroy();
     }
 
-    private void applyUpdate(final boolean streaming, final long payloadOffset, final String[] headerKeyValuePairs) {
-        notificationHandler.showInstallNotification(0);
+    @Override
+    public IBinder onBind(final Intent intent) {
+        return null;
+    }
 
-        final CountDownLatch monitor = new CountDownLatch(1);
-        final UpdateEngine engine = new UpdateEngine();
-        engine.bind(new UpdateEngineCallback() {
-            @Override
-            public void onStatusUpdate(int status, float percent) {
-                Log.d(TAG, "onStatusUpdate: " + status + ", " + percent * 100 + "%");
-                if (status == UpdateStatusConstants.DOWNLOADING) {
-                    notificationHandler.showInstallNotification(Math.round(percent * 100));
-                } else if (status == UpdateStatusConstants.VERIFYING) {
-                    notificationHandler.showValidateNotification(Math.round(percent * 100));
-                } else if (status == UpdateStatusConstants.FINALIZING) {
-                    notificationHandler.showFinalizeNotification(Math.round(percent * 100));
-                }
+    @Override
+    public int onStartCommand(final Intent intent, final int flags, final int startId) {
+        Log.d(TAG, "onStartCommand");
+
+        final String action = intent.getAction();
+        if (NotificationHandler.ACTION_PAUSE.equals(action)) {
+            // the orchestrator releases the wake lock unless the attempt still has work running
+            if (orchestrator.pause()) {
+                notificationHandler.setPaused(true);
             }
-
-            @Override
-            public void onPayloadApplicationComplete(int errorCode) {
-                if (errorCode == ErrorCodeConstants.SUCCESS) {
-                    Log.d(TAG, "onPayloadApplicationComplete success");
-                    annoyUser();
-                } else {
-                    Log.d(TAG, "onPayloadApplicationComplete: " + errorCode);
-                    mUpdating = false;
-                }
-                UPDATE_PATH.delete();
-                monitor.countDown();
+        } else if (NotificationHandler.ACTION_RESUME.equals(action)) {
+            if (orchestrator.resume()) {
+                notificationHandler.setPaused(false);
             }
-        });
-        if (streaming) {
-            final SharedPreferences preferences = Settings.getPreferences(this);
-            final String downloadFile = preferences.getString(PREFERENCE_DOWNLOAD_FILE.replace("-streaming", ""), null);
-            engine.applyPayload(getString(R.string.url) + downloadFile, payloadOffset, 0, headerKeyValuePairs);
+        } else if (NotificationHandler.ACTION_CANCEL.equals(action)) {
+            orchestrator.cancel(CANCELLED_BY_USER);
+        }
+        if (action != null) {
+            if (orchestrator.isRunning()) {
+                // the attempt that's running stops the service once finished
+                attemptStartIds.last = startId;
+            } else {
+                stopSelfResult(startId);
+            }
+            return START_NOT_STICKY;
+        }
+
+        final Network network = intent.getParcelableExtra(INTENT_EXTRA_NETWORK, Network.class);
+        final boolean userInitiated = intent.getBooleanExtra(INTENT_EXTRA_IS_USER_INITIATED, false);
+        if (userInitiated) Log.d(TAG, "onStartCommand() – service is user-initiated");
+        final boolean install = intent.getBooleanExtra(INTENT_EXTRA_INSTALL, true);
+
+        // The service stops once the last request has been handled, either by its own attempt or
+        // by the running one it was coalesced into, which takes on installing if this request asks
+        // for it. A request arriving after that attempt ended has a later start ID, which keeps
+        // the service running for the attempt it starts.
+        final StartIds startIds = new StartIds(startId);
+        if (orchestrator.submit(control -> runAttempt(network, control), install, userInitiated,
+                () -> handler.post(() -> stopSelfResult(startIds.last)))) {
+            attemptStartIds = startIds;
         } else {
-            UPDATE_PATH.setReadable(true, false);
-            engine.applyPayload("file://" + UPDATE_PATH, payloadOffset, 0, headerKeyValuePairs);
+            Log.d(TAG, "update attempt running already, coalescing request");
+            attemptStartIds.last = startId;
         }
-        try {
-            monitor.await();
-        } catch (InterruptedException e) {}
+        return START_NOT_STICKY;
     }
 
-    private static ZipEntry getEntry(final ZipFile zipFile, final String name) throws GeneralSecurityException {
-        final ZipEntry entry = zipFile.getEntry(name);
-        if (entry == null) {
-            throw new GeneralSecurityException("missing zip entry: " + name);
+    private File getMetricsFile() {
+        return new File(createDeviceProtectedStorageContext().getFilesDir(), METRICS_FILE);
+    }
+
+    private static String getPhase(final int status) {
+        if (status == UpdateStatusConstants.DOWNLOADING) {
+            return UpdateMetrics.PHASE_DOWNLOADING;
+        } else if (status == UpdateStatusConstants.VERIFYING) {
+            return UpdateMetrics.PHASE_VERIFYING;
+        } else if (status == UpdateStatusConstants.FINALIZING) {
+            return UpdateMetrics.PHASE_FINALIZING;
         }
-        return entry;
+        return null;
     }
 
-    private void onDownloadFinished(final boolean streaming, final long targetBuildDate, final String channel) throws IOException, GeneralSecurityException {
-        try {
-            notificationHandler.showVerifyNotification(0);
-            RecoverySystem.verifyPackage(UPDATE_PATH, (int progress) -> {
-                Log.d(TAG, "verifyPackage: " + progress + "%");
-                notificationHandler.showVerifyNotification(progress);
-            }, null);
-
-            final ZipFile zipFile = new ZipFile(UPDATE_PATH);
-
-            final ZipEntry metadata = getEntry(zipFile, "META-INF/com/android/metadata");
-            final BufferedReader reader = new BufferedReader(new InputStreamReader(zipFile.getInputStream(metadata)));
-            String device = null;
-            String serialno = null;
-            String type = null;
-            String sourceIncremental = null;
-            String sourceFingerprint = null;
-            String streamingPropertyFiles[] = null;
-            long timestamp = 0;
-            for (String line; (line = reader.readLine()) != null; ) {
-                final String[] pair = line.split("=");
-                if ("post-timestamp".equals(pair[0])) {
-                    timestamp = Long.parseLong(pair[1]);
-                } else if ("serialno".equals(pair[0])) {
-                    serialno = pair[1];
-                } else if ("pre-device".equals(pair[0])) {
-                    device = pair[1];
-                } else if ("ota-type".equals(pair[0])) {
-                    type = pair[1];
-                } else if ("ota-streaming-property-files".equals(pair[0])) {
-                    streamingPropertyFiles = pair[1].trim().split(",");
-                } else if ("pre-build-incremental".equals(pair[0])) {
-                    sourceIncremental = pair[1];
-                } else if ("pre-build".equals(pair[0])) {
-                    sourceFingerprint = pair[1];
-                }
-            }
-            if (timestamp != targetBuildDate) {
-                throw new GeneralSecurityException("timestamp does not match server metadata");
-            }
-            if (!DEVICE.equals(device)) {
-                throw new GeneralSecurityException("device mismatch");
+    // Follows a payload application in the progress notification until update_engine reports it
+    // complete. update_engine reports its current status as soon as it's bound, which is how one
+    // still running from an earlier process is found.
+    private class EngineSession extends UpdateEngineCallback {
+        private static final long BIND_TIMEOUT_SECONDS = 10;
+
+        final UpdateEngine engine = new UpdateEngine();
+        private final CountDownLatch bound = new CountDownLatch(1);
+        private final CountDownLatch complete = new CountDownLatch(1);
+        // status updates can still arrive once this attempt is over
+        private final UpdateMetrics attemptMetrics = metrics;
+        private final Pacer attemptPacer = pacer;
+        private volatile int initialStatus = -1;
+        private volatile boolean success;
+        // suspended for pacing rather than by the user, guarded by the attempt's Control
+        private boolean paced;
+
+        @Override
+        public void onStatusUpdate(int status, float percent) {
+            Log.d(TAG, "onStatusUpdate: " + status + ", " + percent * 100 + "%");
+            if (bound.getCount() != 0) {
+                initialStatus = status;
+                bound.countDown();
             }
-            if (serialno != null) {
-                throw new GeneralSecurityException("serialno constraint not permitted");
+            attemptMetrics.onPhase(getPhase(status));
+            if (status == UpdateStatusConstants.DOWNLOADING) {
+                notificationHandler.showInstallNotification(Math.round(percent * 100));
+            } else if (status == UpdateStatusConstants.VERIFYING) {
+                notificationHandler.showValidateNotification(Math.round(percent * 100));
+            } else if (status == UpdateStatusConstants.FINALIZING) {
+                notificationHandler.showFinalizeNotification(Math.round(percent * 100));
             }
-            if (!"AB".equals(type)) {
-                throw new GeneralSecurityException("package is not an A/B update");
+        }
+
+        @Override
+        public void onPayloadApplicationComplete(int errorCode) {
+            if (errorCode == ErrorCodeConstants.SUCCESS) {
+                Log.d(TAG, "onPayloadApplicationComplete success");
+                success = true;
+            } else {
+                Log.d(TAG, "onPayloadApplicationComplete: " + errorCode);
+                attemptMetrics.setResult("update_engine error " + errorCode);
             }
-            if (sourceIncremental != null && !sourceIncremental.equals(INCREMENTAL)) {
-                throw new GeneralSecurityException("source incremental mismatch");
+            complete.countDown();
+        }
+
+        // returns the status update_engine reported on binding or -1 if it didn't
+        int bind() {
+            engine.bind(this);
+            try {
+                bound.await(BIND_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-            if (sourceFingerprint != null && !sourceFingerprint.equals(FINGERPRINT)) {
-                throw new GeneralSecurityException("source fingerprint mismatch");
+            return initialStatus;
+        }
+
+        boolean await(final UpdateOrchestrator.Control control) {
+            control.setSuspendable(new UpdateOrchestrator.Suspendable() {
+                @Override
+                public boolean suspend() {
+                    if (paced) {
+                        // suspended already, and the user's pause takes over
+                        paced = false;
+                        return true;
+                    }
+                    try {
+                        engine.suspend();
+                        return true;
+                    } catch (ServiceSpecificException e) {
+                        Log.w(TAG, "unable to suspend payload application", e);
+                        return false;
+                    }
+                }
+
+                @Override
+                public void resume() {
+                    try {
+                        engine.resume();
+                    } catch (ServiceSpecificException e) {
+                        Log.w(TAG, "unable to resume payload application", e);
+                    }
+                }
+            });
+            try {
+                while (!complete.await(PACING_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    pace(control);
+                }
+            } catch (InterruptedException e) {
+                Log.d(TAG, "cancelling payload application");
+                engine.cancel();
+            } finally {
+                control.setSuspendable(null);
             }
+            engine.unbind();
+            return success;
+        }
 
-            long payloadOffset = 0;
-            for (final String streamingPropertyFile : streamingPropertyFiles) {
-                final String properties[] = streamingPropertyFile.split(":");
-                if ("payload.bin".equals(properties[0])) {
-                    payloadOffset = Long.parseLong(properties[1]);
+        // suspends update_engine while the device is too hot or low on battery and resumes it once
+        // that has passed, unless the user paused it in the meantime
+        private void pace(final UpdateOrchestrator.Control control) {
+            // polls the device condition, which is done before taking the lock
+            final boolean suspend = attemptPacer.shouldSuspend();
+            // the control's lock is held while it suspends or resumes the session for the user,
+            // so this is the only lock needed to keep pacing from undoing a pause
+            synchronized (control) {
+                if (suspend == paced || control.isPaused()) {
+                    return;
+                }
+                try {
+                    if (suspend) {
+                        engine.suspend();
+                    } else {
+                        engine.resume();
+                    }
+                    paced = suspend;
+                    Log.d(TAG, (suspend ? "suspended" : "resumed") + " payload application for pacing");
+                } catch (ServiceSpecificException e) {
+                    Log.w(TAG, "unable to pace payload application", e);
                 }
             }
+        }
+    }
 
-            Files.deleteIfExists(CARE_MAP_PATH.toPath());
-            final ZipEntry careMapEntry = zipFile.getEntry("care_map.pb");
-            if (careMapEntry == null) {
-                Log.w(TAG, "care_map.pb missing");
-            } else {
-                Files.copy(zipFile.getInputStream(careMapEntry), CARE_MAP_PATH.toPath());
-                CARE_MAP_PATH.setReadable(true, false);
+    // Combines the thermal status with the battery state, treating a low battery without charging
+    // like a severe thermal status and battery saver like a light one.
+    private int getPacingLevel() {
+        final PowerManager powerManager = getSystemService(PowerManager.class);
+        final int thermalStatus = powerManager.getCurrentThermalStatus();
+        int level;
+        if (thermalStatus >= PowerManager.THERMAL_STATUS_CRITICAL) {
+            level = Pacer.LEVEL_CRITICAL;
+        } else if (thermalStatus >= PowerManager.THERMAL_STATUS_SEVERE) {
+            level = Pacer.LEVEL_SEVERE;
+        } else if (thermalStatus >= PowerManager.THERMAL_STATUS_MODERATE) {
+            level = Pacer.LEVEL_LIGHT;
+        } else {
+            level = Pacer.LEVEL_NONE;
+        }
+        final BatteryManager batteryManager = getSystemService(BatteryManager.class);
+        if (!batteryManager.isCharging()) {
+            if (batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY) <= LOW_BATTERY_PERCENT) {
+                level = Math.max(level, Pacer.LEVEL_SEVERE);
+            } else if (powerManager.isPowerSaveMode()) {
+                level = Math.max(level, Pacer.LEVEL_LIGHT);
             }
+        }
+        return level;
+    }
+
+    private boolean applyUpdate(final String url, final long payloadOffset, final long payloadSize,
+            final String[] headerKeyValuePairs, final UpdateOrchestrator.Control control) {
+        notificationHandler.showInstallNotification(0);
+
+        final EngineSession session = new EngineSession();
+        session.engine.bind(session);
+        session.engine.applyPayload(url, payloadOffset, payloadSize, headerKeyValuePairs);
+        return session.await(control);
+    }
 
-            final ZipEntry payloadProperties = getEntry(zipFile, "payload_properties.txt");
-            final BufferedReader propertiesReader = new BufferedReader(new InputStreamReader(zipFile.getInputStream(payloadProperties)));
-            applyUpdate(streaming, payloadOffset, propertiesReader.lines().toArray(String[]::new));
-        } catch (GeneralSecurityException e) {
-            UPDATE_PATH.delete();
-            throw e;
+    private Updater.Session reattach(final UpdateOrchestrator.Control control) {
+        final EngineSession session = new EngineSession();
+        final int status = session.bind();
+        if (status == UpdateStatusConstants.UPDATED_NEED_REBOOT) {
+            // finished while nothing was waiting for it
+            Log.d(TAG, "payload applied by an earlier attempt");
+            session.engine.unbind();
+            return Updater.Session.SUCCEEDED;
+        }
+        if (getPhase(status) == null) {
+            Log.d(TAG, "no payload application to reattach to, status " + status);
+            session.engine.unbind();
+            return Updater.Session.NONE;
         }
+        Log.d(TAG, "reattaching to payload application in status " + status);
+        return session.await(control) ? Updater.Session.SUCCEEDED : Updater.Session.FAILED;
     }
 
     private void annoyUser() {
@@ -213,160 +345,189 @@ public class Service extends IntentService {
         notificationHandler.showRebootNotification();
     }
 
-    @Override
-    protected void onHandleIntent(final Intent intent) {
-        Log.d(TAG, "onHandleIntent");
+    private Updater createUpdater(final Network network, final HttpClient client) {
+        final SharedPreferences preferences = Settings.getPreferences(this);
+        return new Updater(PACKAGE_DIRECTORY,
+                new Updater.Transport() {
+                    @Override
+                    public List<String> getMirrors() {
+                        return Arrays.asList(getResources().getStringArray(R.array.mirror_urls));
+                    }
 
-        final Network network = intent.getParcelableExtra(INTENT_EXTRA_NETWORK, Network.class);
-        final var serviceIsUserInitiated = intent.getBooleanExtra(INTENT_EXTRA_IS_USER_INITIATED, false);
-        if (serviceIsUserInitiated) Log.d(TAG, "onHandeIntent() – service is user-initiated");
+                    @Override
+                    public HttpURLConnection open(final String url) throws IOException {
+                        if (client == null) {
+                            throw new IOException("Network is unavailable");
+                        }
+                        return client.open(url);
+                    }
 
-        final PowerManager pm = getSystemService(PowerManager.class);
-        final WakeLock wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "Updater:" + TAG);
-        HttpURLConnection connection = null;
-        InputStream input = null;
-        try {
-            wakeLock.acquire();
+                    @Override
+                    public List<String> getPayloadHeaders() {
+                        return Collections.singletonList("NETWORK_ID=" + network.getNetworkHandle());
+                    }
+                },
+                new Updater.PropertySource() {
+                    @Override
+                    public String get(final String key, final String def) {
+                        return SystemProperties.get(key, def);
+                    }
 
-            if (mUpdating) {
-                Log.d(TAG, "updating already, returning early");
-                return;
-            }
-            final SharedPreferences preferences = Settings.getPreferences(this);
-            if (preferences.getBoolean(Settings.KEY_WAITING_FOR_REBOOT, false)) {
-                Log.d(TAG, "updated already, waiting for reboot");
-                return;
-            }
-            mUpdating = true;
-            notificationHandler.start();
+                    @Override
+                    public long getLong(final String key, final long def) {
+                        return SystemProperties.getLong(key, def);
+                    }
 
-            if (network == null) {
-                throw new IOException("Network is unavailable");
-            }
+                    @Override
+                    public boolean getBoolean(final String key, final boolean def) {
+                        return SystemProperties.getBoolean(key, def);
+                    }
+                },
+                new Updater.PreferencesStore() {
+                    @Override
+                    public String getString(final String key, final String defValue) {
+                        return preferences.getString(key, defValue);
+                    }
 
-            final String channel = SystemProperties.get("sys.update.channel", Settings.getChannel(this));
+                    @Override
+                    public long getLong(final String key, final long defValue) {
+                        return preferences.getLong(key, defValue);
+                    }
 
-            Log.d(TAG, "fetching metadata for " + DEVICE + "-" + channel);
-            connection = fetchData(network, DEVICE + "-" + channel);
-            final String[] metadata;
-            try (final BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
-                metadata = reader.readLine().split(" ");
-            }
+                    @Override
+                    public void putString(final String key, final String value) {
+                        if (value == null) {
+                            preferences.edit().remove(key).commit();
+                        } else {
+                            preferences.edit().putString(key, value).commit();
+                        }
+                    }
 
-            final String targetIncremental = metadata[0];
-            final long targetBuildDate = Long.parseLong(metadata[1]);
-            final long sourceBuildDate = SystemProperties.getLong("ro.build.date.utc", 0);
-            if (targetBuildDate <= sourceBuildDate) {
-                notificationHandler.showUpdatedNotification(channel);
-                Log.d(TAG, "targetBuildDate: " + targetBuildDate + " not higher than sourceBuildDate: " + sourceBuildDate);
-                mUpdating = false;
-                return;
-            }
-            final String targetDevice = metadata[2];
-            if (!targetDevice.equals(DEVICE)) {
-                throw new GeneralSecurityException("targetDevice: " + targetDevice + " does not match device: " + DEVICE);
-            }
-            final String targetChannel = metadata[3];
-            if (!targetChannel.equals(channel)) {
-                throw new GeneralSecurityException("targetChannel: " + targetChannel + " does not match channel: " + channel);
-            }
+                    @Override
+                    public void putLong(final String key, final long value) {
+                        preferences.edit().putLong(key, value).commit();
+                    }
+                },
+                new Updater.PayloadApplier() {
+                    @Override
+                    public boolean applyPayload(final String url, final long offset, final long size,
+                            final String[] headerKeyValuePairs, final UpdateOrchestrator.Control control) {
+                        return applyUpdate(url, offset, size, headerKeyValuePairs, control);
+                    }
+
+                    @Override
+                    public Updater.Session reattach(final UpdateOrchestrator.Control control) {
+                        return Service.this.reattach(control);
+                    }
+                },
+                (file, listener) -> RecoverySystem.verifyPackage(file, listener::onProgress, null),
+                // frees cached data from other apps if needed
+                (fd, length) -> getSystemService(StorageManager.class).allocateBytes(fd, length,
+                        StorageManager.FLAG_ALLOCATE_AGGRESSIVE),
+                new Updater.Listener() {
+                    @Override
+                    public void onUpToDate(final String channel) {
+                        notificationHandler.showUpdatedNotification(channel);
+                    }
+
+                    @Override
+                    public void onDownloadStart(final File file, final long downloaded, final long contentLength) {
+                        notificationHandler.showDownloadNotification(downloaded, contentLength);
+                    }
 
-            notificationHandler.showDownloadNotification(0, 100);
+                    @Override
+                    public void onDownloadProgress(final long downloaded, final long contentLength) {
+                        notificationHandler.showDownloadNotification(downloaded, contentLength);
+                    }
 
-            String downloadFile = preferences.getString(PREFERENCE_DOWNLOAD_FILE, null);
-            long downloaded;
-            long contentLength;
+                    @Override
+                    public void onVerifyProgress(final int progress) {
+                        notificationHandler.showVerifyNotification(progress);
+                    }
+                },
+                metrics, pacer);
+    }
 
-            final boolean streaming = SystemProperties.getBoolean("sys.update.streaming_test", false);
+    @Override
+    protected void dump(final FileDescriptor fd, final PrintWriter writer, final String[] args) {
+        final SharedPreferences preferences = Settings.getPreferences(this);
+        writer.println("metadata not modified: " + preferences.getLong(Updater.PREFERENCE_METADATA_NOT_MODIFIED, 0));
+        writer.println("metadata modified: " + preferences.getLong(Updater.PREFERENCE_METADATA_MODIFIED, 0));
+        notificationHandler.dump(writer);
+        UpdateMetrics.dump(getMetricsFile(), writer);
+    }
 
-            final String streamingPrefix = streaming ? "-streaming" : "";
-            final String incrementalUpdate = DEVICE + streamingPrefix + "-incremental-" + INCREMENTAL + "-" + targetIncremental + ".zip";
-            final String fullUpdate = DEVICE + streamingPrefix + "-ota_update-" + targetIncremental + ".zip";
+    private void runAttempt(final Network network, final UpdateOrchestrator.Control control) {
+        final boolean install = control.isInstallRequested();
+        final HttpClient client = network == null ? null : new HttpClient(network);
+        try {
+            final SharedPreferences preferences = Settings.getPreferences(this);
+            if (preferences.getBoolean(Settings.KEY_WAITING_FOR_REBOOT, false)) {
+                Log.d(TAG, "updated already, waiting for reboot");
+                return;
+            }
+            metrics = new UpdateMetrics(getMetricsFile(), INCREMENTAL);
+            pacer = new Pacer(this::getPacingLevel);
+            notificationHandler.start();
 
-            if (incrementalUpdate.equals(downloadFile) || fullUpdate.equals(downloadFile)) {
-                downloaded = UPDATE_PATH.length();
-                Log.d(TAG, "resume fetch of " + downloadFile + " from " + downloaded + " bytes");
-                connection = fetchData(network, downloadFile);
-                connection.setRequestProperty("Range", "bytes=" + downloaded + "-");
-                if (connection.getResponseCode() == HTTP_RANGE_NOT_SATISFIABLE) {
-                    Log.d(TAG, "download completed previously");
-                    onDownloadFinished(streaming, targetBuildDate, channel);
-                    return;
+            if (network == null) {
+                // the install job doesn't wait for the network when the package is stored already
+                if (!install) {
+                    throw new IOException("Network is unavailable");
                 }
-                contentLength = connection.getContentLengthLong() + downloaded;
-                input = connection.getInputStream();
-            } else {
-                try {
-                    Log.d(TAG, "fetch incremental " + incrementalUpdate);
-                    downloadFile = incrementalUpdate;
-                    connection = fetchData(network, downloadFile);
-                    contentLength = connection.getContentLengthLong();
-                    input = connection.getInputStream();
-                } catch (final IOException e) {
-                    Log.d(TAG, "incremental not found, fetch full update " + fullUpdate);
-                    downloadFile = fullUpdate;
-                    connection = fetchData(network, downloadFile);
-                    contentLength = connection.getContentLengthLong();
-                    input = connection.getInputStream();
+                if (!Updater.isReadyToInstall(preferences.getString(Updater.PREFERENCE_PHASE, null))) {
+                    Log.d(TAG, "nothing ready to install without the network");
+                    metrics.setResult("nothing to install");
+                    return;
                 }
-                downloaded = 0;
-                Files.deleteIfExists(UPDATE_PATH.toPath());
             }
 
-            notificationHandler.showDownloadNotification(downloaded, contentLength);
+            final String channel = SystemProperties.get("sys.update.channel", Settings.getChannel(this));
+            final boolean streaming = SystemProperties.getBoolean("sys.update.streaming_test", Settings.getStreaming(this));
 
-            final long requiredBytes = contentLength - downloaded;
-            try {
-                StorageManager sm = getSystemService(StorageManager.class);
-                // TODO: allocating bytes for file descriptor is more reliable, but it breaks the current
-                //  download resume code
-                sm.allocateBytes(sm.getUuidForPath(UPDATE_PATH), requiredBytes, StorageManager.FLAG_ALLOCATE_AGGRESSIVE);
-            } catch (IOException e) {
-                // storage space is likely to become available later
-                Log.d(TAG, "unable to allocate " + requiredBytes + " bytes, proceeding anyway", e);
+            Updater.Result result = createUpdater(network, client).run(channel, streaming, install, control);
+            if (result == Updater.Result.READY && control.isInstallRequested()) {
+                // an install request was coalesced after the update was left to the install job
+                Log.d(TAG, "install requested meanwhile");
+                result = createUpdater(network, client).run(channel, streaming, true, control);
             }
-
-            try (final OutputStream output = new FileOutputStream(UPDATE_PATH, downloaded != 0)) {
-                preferences.edit().putString(PREFERENCE_DOWNLOAD_FILE, downloadFile).commit();
-
-                int bytesRead;
-                long last = System.nanoTime();
-                final byte[] buffer = new byte[8192];
-                while ((bytesRead = input.read(buffer)) != -1) {
-                    output.write(buffer, 0, bytesRead);
-                    downloaded += bytesRead;
-                    final long now = System.nanoTime();
-                    if (now - last > 1000 * 1000 * 1000) {
-                        Log.d(TAG, "downloaded " + downloaded + " from " + contentLength + " bytes");
-                        notificationHandler.showDownloadNotification(downloaded, contentLength);
-                        last = now;
-                    }
-                }
+            if (result == Updater.Result.INSTALLED) {
+                annoyUser();
+            } else if (result == Updater.Result.READY) {
+                PeriodicJob.scheduleInstall(this);
             }
-
-            Log.d(TAG, "download completed");
-            onDownloadFinished(streaming, targetBuildDate, channel);
         } catch (GeneralSecurityException | IOException | ServiceSpecificException e) {
+            if (e instanceof InterruptedIOException && CANCELLED_BY_USER.equals(e.getMessage())) {
+                // the progress made so far is kept and the periodic job tries again as usual
+                Log.d(TAG, "update cancelled by user");
+                metrics.setResult(CANCELLED_BY_USER);
+                return;
+            }
             Log.e(TAG, "failed to download and install update", e);
+            metrics.setResult(e.toString());
             notificationHandler.showFailureNotification(e.getMessage());
-            mUpdating = false;
-            if (serviceIsUserInitiated) {
+            if (control.isUserInitiated()) {
                 // Either the user will try again immediately or the already scheduled periodic
                 // job will pick it up under constraints (which will retry on failure)
-                Log.w(TAG, "onHandleIntent() – service failed but failure is ignored because it was user-initiated");
+                Log.w(TAG, "runAttempt() – service failed but failure is ignored because it was user-initiated");
             } else {
                 PeriodicJob.scheduleRetry(this);
-                Log.w(TAG, "onHandleIntent() – service failed but has been scheduled for retry");
+                Log.w(TAG, "runAttempt() – service failed but has been scheduled for retry");
             }
         } finally {
-            IoUtils.closeQuietly(input);
-
-            if (connection != null) {
-                connection.disconnect();
+            // the polling interval depends on what the attempt found
+            if (!Settings.getPreferences(this).getBoolean(Settings.KEY_WAITING_FOR_REBOOT, false)) {
+                PeriodicJob.schedule(this);
             }
             notificationHandler.cancelProgressNotification();
-            Log.d(TAG, "release wake lock");
-            wakeLock.release();
+            if (metrics != null) {
+                if (client != null) {
+                    metrics.setConnections(client.getRequests(), client.getConnections(), client.getResumedSessions());
+                }
+                metrics.setPacing(pacer.getThrottledMillis(), pacer.getMaxLevel());
+                metrics.save();
+                metrics = null;
+            }
         }
     }
 }
@@ -24,7 +24,10 @@ public class Settings extends CollapsingToolbarBaseActivity {
     private static final String KEY_NETWORK_TYPE = "network_type";
     private static final String KEY_BATTERY_NOT_LOW = "battery_not_low";
     private static final String KEY_REQUIRES_CHARGING = "requires_charging";
+    private static final String KEY_INSTALL_REQUIRES_CHARGING = "install_requires_charging";
+    private static final String KEY_INSTALL_REQUIRES_IDLE = "install_requires_idle";
     private static final String KEY_IDLE_REBOOT = "idle_reboot";
+    private static final String KEY_STREAMING = "streaming";
     private static final String KEY_CHECK_FOR_UPDATES = "check_for_updates";
     static final String KEY_WAITING_FOR_REBOOT = "waiting_for_reboot";
 
@@ -53,11 +56,26 @@ public class Settings extends CollapsingToolbarBaseActivity {
                 Boolean.parseBoolean(context.getString(R.string.requires_charging_default)));
     }
 
+    static boolean getInstallRequiresCharging(final Context context) {
+        return getPreferences(context).getBoolean(KEY_INSTALL_REQUIRES_CHARGING,
+                Boolean.parseBoolean(context.getString(R.string.install_requires_charging_default)));
+    }
+
+    static boolean getInstallRequiresIdle(final Context context) {
+        return getPreferences(context).getBoolean(KEY_INSTALL_REQUIRES_IDLE,
+                Boolean.parseBoolean(context.getString(R.string.install_requires_idle_default)));
+    }
+
     static boolean getIdleReboot(final Context context) {
         return getPreferences(context).getBoolean(KEY_IDLE_REBOOT,
                 Boolean.parseBoolean(context.getString(R.string.idle_reboot_default)));
     }
 
+    static boolean getStreaming(final Context context) {
+        return getPreferences(context).getBoolean(KEY_STREAMING,
+                Boolean.parseBoolean(context.getString(R.string.streaming_default)));
+    }
+
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -135,8 +153,14 @@ public class Settings extends CollapsingToolbarBaseActivity {
                 case KEY_REQUIRES_CHARGING:
                     if (!getPreferences(requireContext()).getBoolean(KEY_WAITING_FOR_REBOOT, false)) {
                         PeriodicJob.schedule(requireContext());
+                        PeriodicJob.updateInstall(requireContext());
                     }
                     break;
+                case KEY_STREAMING:
+                case KEY_INSTALL_REQUIRES_CHARGING:
+                case KEY_INSTALL_REQUIRES_IDLE:
+                    PeriodicJob.updateInstall(requireContext());
+                    break;
                 case KEY_IDLE_REBOOT:
                     if (!getIdleReboot(requireContext())) {
                         IdleReboot.cancel(requireContext());